@@ -10,9 +10,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.provider.OpenableColumns;
 import android.util.Log;
 
@@ -43,9 +45,11 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipException;
 
@@ -57,6 +61,7 @@ import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.ui.ManageAccountActivity;
 import eu.siacs.conversations.utils.BackupFileHeader;
+import eu.siacs.conversations.utils.ChunkedBackup;
 import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
 import eu.siacs.conversations.xmpp.Jid;
 
@@ -64,6 +69,7 @@ public class ImportBackupService extends Service {
 
     private static final int NOTIFICATION_ID = 21;
     private static final AtomicBoolean running = new AtomicBoolean(false);
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
     private final ImportBackupServiceBinder binder = new ImportBackupServiceBinder();
     private final SerialSingleThreadExecutor executor = new SerialSingleThreadExecutor(getClass().getSimpleName());
     private final Set<OnBackupProcessed> mOnBackupProcessedListeners = Collections.newSetFromMap(new WeakHashMap<>());
@@ -241,36 +247,11 @@ public class ImportBackupService extends Service {
 
             final byte[] key = ExportBackupService.getKey(password, backupFileHeader.getSalt());
 
-            final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
-            cipher.init(false, new AEADParameters(new KeyParameter(key), 128, backupFileHeader.getIv()));
-            final CipherInputStream cipherInputStream = new CipherInputStream(countingInputStream, cipher);
-
-            final GZIPInputStream gzipInputStream = new GZIPInputStream(cipherInputStream);
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(gzipInputStream, Charsets.UTF_8));
-            db.beginTransaction();
-            String line;
-            StringBuilder multiLineQuery = null;
-            while ((line = reader.readLine()) != null) {
-                int count = count(line, '\'');
-                if (multiLineQuery != null) {
-                    multiLineQuery.append('\n');
-                    multiLineQuery.append(line);
-                    if (count % 2 == 1) {
-                        db.execSQL(multiLineQuery.toString());
-                        multiLineQuery = null;
-                        updateImportBackupNotification(fileSize, countingInputStream.getCount());
-                    }
-                } else {
-                    if (count % 2 == 0) {
-                        db.execSQL(line);
-                        updateImportBackupNotification(fileSize, countingInputStream.getCount());
-                    } else {
-                        multiLineQuery = new StringBuilder(line);
-                    }
-                }
+            if (backupFileHeader.getVersion() == BackupFileHeader.VERSION_LEGACY) {
+                importLegacyBackup(db, countingInputStream, key, backupFileHeader.getIv(), fileSize);
+            } else {
+                importChunkedBackup(db, countingInputStream, key, backupFileHeader.getIv(), fileSize);
             }
-            db.setTransactionSuccessful();
-            db.endTransaction();
             final Jid jid = backupFileHeader.getJid();
             final Cursor countCursor = db.rawQuery("select count(messages.uuid) from messages join conversations on conversations.uuid=messages.conversationUuid join accounts on conversations.accountUuid=accounts.uuid where accounts.username=? and accounts.server=?", new String[]{jid.getEscapedLocal(), jid.getDomain().toEscapedString()});
             countCursor.moveToFirst();
@@ -301,6 +282,55 @@ public class ImportBackupService extends Service {
         }
     }
 
+    private void importLegacyBackup(final SQLiteDatabase db, final CountingInputStream countingInputStream, final byte[] key, final byte[] iv, final long fileSize) throws IOException {
+        final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(false, new AEADParameters(new KeyParameter(key), 128, iv));
+        final CipherInputStream cipherInputStream = new CipherInputStream(countingInputStream, cipher);
+
+        final GZIPInputStream gzipInputStream = new GZIPInputStream(cipherInputStream);
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(gzipInputStream, Charsets.UTF_8));
+        db.beginTransaction();
+        String line;
+        StringBuilder multiLineQuery = null;
+        while ((line = reader.readLine()) != null) {
+            int count = count(line, '\'');
+            if (multiLineQuery != null) {
+                multiLineQuery.append('\n');
+                multiLineQuery.append(line);
+                if (count % 2 == 1) {
+                    db.execSQL(multiLineQuery.toString());
+                    multiLineQuery = null;
+                    updateImportBackupNotification(fileSize, countingInputStream.getCount());
+                }
+            } else {
+                if (count % 2 == 0) {
+                    db.execSQL(line);
+                    updateImportBackupNotification(fileSize, countingInputStream.getCount());
+                } else {
+                    multiLineQuery = new StringBuilder(line);
+                }
+            }
+        }
+        db.setTransactionSuccessful();
+        db.endTransaction();
+    }
+
+    private void importChunkedBackup(final SQLiteDatabase db, final CountingInputStream countingInputStream, final byte[] key, final byte[] iv, final long fileSize) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        final ChunkedBackup.Reader reader = new ChunkedBackup.Reader(countingInputStream, key, iv);
+        final RowInserter inserter = new RowInserter(db, fileSize, countingInputStream);
+        db.beginTransaction();
+        try {
+            reader.read(inserter);
+            db.setTransactionSuccessful();
+        } finally {
+            inserter.close();
+            db.endTransaction();
+        }
+        final long duration = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.d(Config.LOGTAG, String.format(Locale.US, "imported %d bytes of rows in %dms (%.1f MB/s)", reader.getPayloadBytes(), duration, reader.getPayloadBytes() / 1024.0 / 1024.0 / (duration / 1000.0)));
+    }
+
     private void notifySuccess() {
         NotificationCompat.Builder mBuilder = new NotificationCompat.Builder(getBaseContext(), "backup");
         mBuilder.setContentTitle(getString(R.string.notification_restored_backup_title))
@@ -391,4 +421,80 @@ public class ImportBackupService extends Service {
             return ImportBackupService.this;
         }
     }
-}
\ No newline at end of file
+
+    private class RowInserter implements ChunkedBackup.RowListener {
+
+        private final SQLiteDatabase db;
+        private final long fileSize;
+        private final CountingInputStream countingInputStream;
+        private SQLiteStatement statement;
+        private long lastProgress = 0;
+
+        private RowInserter(final SQLiteDatabase db, final long fileSize, final CountingInputStream countingInputStream) {
+            this.db = db;
+            this.fileSize = fileSize;
+            this.countingInputStream = countingInputStream;
+        }
+
+        @Override
+        public void onTable(final String table, final String[] columns) {
+            close();
+            final StringBuilder builder = new StringBuilder("INSERT INTO ");
+            builder.append(checkIdentifier(table)).append('(');
+            for (int i = 0; i < columns.length; ++i) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(checkIdentifier(columns[i]));
+            }
+            builder.append(") VALUES(");
+            for (int i = 0; i < columns.length; ++i) {
+                builder.append(i == 0 ? "?" : ",?");
+            }
+            builder.append(')');
+            statement = db.compileStatement(builder.toString());
+        }
+
+        @Override
+        public void onRow(final Object[] values) {
+            if (statement == null) {
+                throw new IllegalStateException("row without table");
+            }
+            statement.clearBindings();
+            for (int i = 0; i < values.length; ++i) {
+                final Object value = values[i];
+                if (value == null) {
+                    statement.bindNull(i + 1);
+                } else if (value instanceof Long) {
+                    statement.bindLong(i + 1, (Long) value);
+                } else if (value instanceof Double) {
+                    statement.bindDouble(i + 1, (Double) value);
+                } else if (value instanceof byte[]) {
+                    statement.bindBlob(i + 1, (byte[]) value);
+                } else {
+                    statement.bindString(i + 1, value.toString());
+                }
+            }
+            statement.executeInsert();
+            final long now = SystemClock.elapsedRealtime();
+            if (now - lastProgress >= 250) {
+                lastProgress = now;
+                updateImportBackupNotification(fileSize, countingInputStream.getCount());
+            }
+        }
+
+        private void close() {
+            if (statement != null) {
+                statement.close();
+                statement = null;
+            }
+        }
+    }
+
+    private static String checkIdentifier(final String identifier) {
+        if (identifier == null || !IDENTIFIER_PATTERN.matcher(identifier).matches()) {
+            throw new IllegalArgumentException("invalid identifier in backup: " + identifier);
+        }
+        return identifier;
+    }
+}
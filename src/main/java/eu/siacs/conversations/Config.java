@@ -76,6 +76,9 @@ public final class Config {
     public static final int CONNECT_TIMEOUT = 90;
     public static final int POST_CONNECTIVITY_CHANGE_PING_INTERVAL = 30;
     public static final int CONNECT_DISCO_TIMEOUT = 20;
+    public static final int WAKE_UP_ALIGNMENT = 20; // seconds a ping or reconnect may be brought forward to share a wake-up with another account
+    public static final int IQ_TIMEOUT = 120; // seconds until an unanswered iq is reported as timed out
+    public static final int IQ_TIMEOUT_TICK = 500; // ms resolution of iq deadlines
     public static final int MINI_GRACE_PERIOD = 750;
 
     public static final boolean XEP_0392 = true; //enables XEP-0392 v0.6.0
@@ -83,6 +86,8 @@ public final class Config {
     public static final int AVATAR_SIZE = 192;
     public static final Bitmap.CompressFormat AVATAR_FORMAT = Bitmap.CompressFormat.JPEG;
     public static final int AVATAR_CHAR_LIMIT = 9400;
+    public static final int AVATAR_DISK_CACHE_MAX_SIZE = 256; // avatars up to this many pixels are kept in the thumbnail disk cache
+    public static final int AVATAR_PREFETCH_COUNT = 30; // conversations below the first visible one whose avatars are rendered ahead of time
 
     public static final int IMAGE_SIZE = 1920;
     public static final Bitmap.CompressFormat IMAGE_FORMAT = Bitmap.CompressFormat.JPEG;
@@ -93,8 +98,46 @@ public final class Config {
     public static final int PAGE_SIZE = 50;
     public static final int MAX_NUM_PAGES = 3;
     public static final int MAX_SEARCH_RESULTS = 300;
+    public static final int MESSAGE_RESTORE_CHUNK_SIZE = 200; // conversations whose latest page is restored with a single query
+
+    public static final int MESSAGE_WRITE_BATCH_SIZE = 250; // max number of message writes per transaction
+    public static final long MESSAGE_WRITE_BATCH_DELAY = 100; // ms a queued message write may wait for others to join its transaction
+
+    public static final long ROSTER_SYNC_DELAY = 250; // ms a roster write waits for further roster pushes
+    public static final long ROSTER_SYNC_MAX_DELAY = 2000; // ms a burst of roster pushes may postpone the write
+    public static final long DATABASE_TASK_WAIT_WARNING = 1000; // ms a database task may wait in its lane before it gets logged
 
     public static final int REFRESH_UI_INTERVAL = 500;
+    public static final long NOTIFICATION_UPDATE_INTERVAL = 500; // ms between silent updates of the message notifications on the same channel
+    public static final long UI_UPDATE_INTERVAL = 250; // ms within which listener callbacks of the same kind are coalesced
+
+    public static final int CAPS_CACHE_MIN_SIZE = 32; // entity capabilities kept in memory before the cache starts to grow
+    public static final int CAPS_CACHE_MAX_SIZE = 512;
+    public static final int CAPS_CACHE_PRELOAD = 128; // most recently fetched capabilities loaded on start up
+    public static final int CAPS_MAX_REQUEST_ATTEMPTS = 3; // entities asked for the same caps before giving up
+
+    public static final int THUMBNAIL_MAX_WORKERS = 4; // threads decoding previews in parallel
+    public static final long THUMBNAIL_DISK_CACHE_SIZE = 48 * 1024 * 1024; // bytes of downscaled previews kept in the cache directory
+
+    public static final int FILE_TRANSFER_MAX_WORKERS = 4; // jingle file transfers running at the same time, further ones are queued
+    public static final int FILE_TRANSFER_BUFFER_SIZE = 256 * 1024; // bytes per buffer handed between the network and the file stage
+    public static final long FILE_TRANSFER_PROGRESS_INTERVAL = 250; // ms between progress updates of a running transfer
+    public static final int FILE_TRANSFER_STAGE_TIMEOUT = 30; // seconds a transfer waits for its file stage to hand over a buffer
+    public static final int IBB_INITIAL_WINDOW = 4; // in-band bytestream blocks sent before waiting for an acknowledgement
+    public static final int IBB_MAX_WINDOW = 32;
+    public static final long IBB_MIN_QUEUEING_DELAY = 100; // ms the round trip time may rise above its minimum before the window shrinks
+    public static final boolean IBB_PREFER_MESSAGE_STANZAS = false; // send in-band bytestream blocks as messages if stream management is available
+    public static final int HTTP_DOWNLOAD_SEGMENTS = 4; // byte ranges of a large http download fetched in parallel
+    public static final long HTTP_DOWNLOAD_MIN_SEGMENT_SIZE = 2 * 1024 * 1024; // files smaller than two ranges of this size are downloaded in one piece
+    public static final long HTTP_DOWNLOAD_CHECKPOINT_SIZE = 4 * 1024 * 1024; // bytes per range between two saves of the resume state
+
+    public static final int JID_CACHE_SIZE = 2048; // parsed jids kept as canonical instances
+
+    public static final int STANZA_WRITER_MAX_BATCH_BYTES = 16 * 1024; // flush once a batch of outgoing stanzas exceeds this
+    public static final long STANZA_WRITER_MAX_BATCH_DELAY = 20; // ms to wait for more stanzas once a burst was detected
+    public static final int STANZA_DISPATCH_LANES = 1; // incoming stanzas are handled on this many threads per account, split by sender
+    public static final int STANZA_DISPATCH_QUEUE_SIZE = 256; // stanzas waiting for their handler before the reader stops reading
+    public static final int SM_MAX_UNACKNOWLEDGED = 4096; // stanzas kept for resending; a session that exceeds this is dropped
 
     public static final int MAX_DISPLAY_MESSAGE_CHARS = 4096;
     public static final int MAX_STORAGE_MESSAGE_CHARS = 2 * 1024 * 1024; //2MB
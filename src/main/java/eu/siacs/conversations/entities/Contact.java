@@ -20,6 +20,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -69,6 +70,7 @@ public class Contact implements ListItem, Blockable {
     private long mLastseen = 0;
     private String mLastPresence = null;
     private RtpCapability.Capability rtpCapability;
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
 
     public Contact(final String account, final String systemName, final String serverName, final String presenceName,
                    final Jid jid, final int subscription, final String photoUri,
@@ -246,6 +248,27 @@ public class Contact implements ListItem, Blockable {
         }
     }
 
+    /**
+     * Marks this contact as having changes that are not yet persisted. Every setter of a
+     * persisted field calls this when the value actually changed.
+     */
+    public void markDirty() {
+        this.dirty.set(true);
+    }
+
+    /**
+     * Clears the dirty flag and returns whether it was set. Callers must read the content
+     * values after clearing so that concurrent changes either make it into this write or
+     * mark the contact dirty again.
+     */
+    public boolean clearDirty() {
+        return this.dirty.getAndSet(false);
+    }
+
+    public boolean isDirty() {
+        return this.dirty.get();
+    }
+
     public Account getAccount() {
         return this.account;
     }
@@ -279,9 +302,11 @@ public class Contact implements ListItem, Blockable {
     public boolean setPhotoUri(String uri) {
         if (uri != null && !uri.equals(this.photoUri)) {
             this.photoUri = uri;
+            markDirty();
             return true;
         } else if (this.photoUri != null && uri == null) {
             this.photoUri = null;
+            markDirty();
             return true;
         } else {
             return false;
@@ -289,18 +314,27 @@ public class Contact implements ListItem, Blockable {
     }
 
     public void setServerName(String serverName) {
-        this.serverName = serverName;
+        if (!Objects.equals(this.serverName, serverName)) {
+            this.serverName = serverName;
+            markDirty();
+        }
     }
 
     public boolean setSystemName(String systemName) {
         final String old = getDisplayName();
-        this.systemName = systemName;
+        if (!Objects.equals(this.systemName, systemName)) {
+            this.systemName = systemName;
+            markDirty();
+        }
         return !old.equals(getDisplayName());
     }
 
     public boolean setPresenceName(String presenceName) {
         final String old = getDisplayName();
-        this.presenceName = presenceName;
+        if (!Objects.equals(this.presenceName, presenceName)) {
+            this.presenceName = presenceName;
+            markDirty();
+        }
         return !old.equals(getDisplayName());
     }
 
@@ -309,7 +343,10 @@ public class Contact implements ListItem, Blockable {
     }
 
     public void setSystemAccount(Uri lookupUri) {
-        this.systemAccount = lookupUri;
+        if (!Objects.equals(this.systemAccount, lookupUri)) {
+            this.systemAccount = lookupUri;
+            markDirty();
+        }
     }
 
     private Collection<String> getGroups(final boolean unique) {
@@ -342,7 +379,11 @@ public class Contact implements ListItem, Blockable {
         synchronized (this.keys) {
             try {
                 this.keys.put("pgp_keyid", keyId);
-                return previousKeyId != keyId;
+                if (previousKeyId != keyId) {
+                    markDirty();
+                    return true;
+                }
+                return false;
             } catch (final JSONException ignored) {
             }
         }
@@ -350,11 +391,19 @@ public class Contact implements ListItem, Blockable {
     }
 
     public void setOption(int option) {
+        final int previous = this.subscription;
         this.subscription |= 1 << option;
+        if (previous != this.subscription) {
+            markDirty();
+        }
     }
 
     public void resetOption(int option) {
+        final int previous = this.subscription;
         this.subscription &= ~(1 << option);
+        if (previous != this.subscription) {
+            markDirty();
+        }
     }
 
     public boolean getOption(int option) {
@@ -416,12 +465,16 @@ public class Contact implements ListItem, Blockable {
     }
 
     public void parseGroupsFromElement(Element item) {
-        this.groups = new JSONArray();
+        final JSONArray groups = new JSONArray();
         for (Element element : item.getChildren()) {
             if (element.getName().equals("group") && element.getContent() != null) {
-                this.groups.put(element.getContent());
+                groups.put(element.getContent());
             }
         }
+        if (!groups.toString().equals(this.groups.toString())) {
+            markDirty();
+        }
+        this.groups = groups;
     }
 
     public Element asElement() {
@@ -458,6 +511,7 @@ public class Contact implements ListItem, Blockable {
             return;
         }
         this.avatar = avatar;
+        markDirty();
     }
 
     public String getAvatarFilename() {
@@ -518,6 +572,7 @@ public class Contact implements ListItem, Blockable {
     public boolean setLastseen(long timestamp) {
         if (timestamp > this.mLastseen) {
             this.mLastseen = timestamp;
+            markDirty();
             return true;
         } else {
             return false;
@@ -529,7 +584,10 @@ public class Contact implements ListItem, Blockable {
     }
 
     public void setLastResource(String resource) {
-        this.mLastPresence = resource;
+        if (!Objects.equals(this.mLastPresence, resource)) {
+            this.mLastPresence = resource;
+            markDirty();
+        }
     }
 
     public String getLastResource() {
@@ -584,7 +642,11 @@ public class Contact implements ListItem, Blockable {
     public boolean refreshRtpCapability() {
         final RtpCapability.Capability previous = this.rtpCapability;
         this.rtpCapability = RtpCapability.check(this, false);
-        return !Objects.equals(previous, this.rtpCapability);
+        if (Objects.equals(previous, this.rtpCapability)) {
+            return false;
+        }
+        markDirty();
+        return true;
     }
 
     public RtpCapability.Capability getRtpCapability() {
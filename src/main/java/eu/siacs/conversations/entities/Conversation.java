@@ -7,7 +7,9 @@ import android.text.TextUtils;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 import org.json.JSONArray;
@@ -67,6 +69,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private static final String ATTRIBUTE_NEXT_ENCRYPTION = "next_encryption";
     private static final String ATTRIBUTE_CORRECTING_MESSAGE = "correcting_message";
     protected final ArrayList<Message> messages = new ArrayList<>();
+    private final MessageIndex messageIndex = new MessageIndex();
     public AtomicBoolean messagesLoaded = new AtomicBoolean(true);
     protected Account account = null;
     private String draftMessage;
@@ -217,14 +220,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findUnsentMessageWithUuid(String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
+            return findIndexed(messageIndex.findByUuid(uuid), message -> {
                 final int s = message.getStatus();
-                if ((s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING) && message.getUuid().equals(uuid)) {
-                    return message;
-                }
-            }
+                return (s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING) && message.getUuid().equals(uuid);
+            }, false);
         }
-        return null;
     }
 
     public void findWaitingMessages(OnMessageFound onMessageFound) {
@@ -258,28 +258,20 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findMessageWithFileAndUuid(final String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
+            return findIndexed(messageIndex.findByUuid(uuid), message -> {
                 final Transferable transferable = message.getTransferable();
                 final boolean unInitiatedButKnownSize = MessageUtils.unInitiatedButKnownSize(message);
-                if (message.getUuid().equals(uuid)
+                return message.getUuid().equals(uuid)
                         && message.getEncryption() != Message.ENCRYPTION_PGP
-                        && (message.isFileOrImage() || message.treatAsDownloadable() || unInitiatedButKnownSize || (transferable != null && transferable.getStatus() != Transferable.STATUS_UPLOADING))) {
-                    return message;
-                }
-            }
+                        && (message.isFileOrImage() || message.treatAsDownloadable() || unInitiatedButKnownSize || (transferable != null && transferable.getStatus() != Transferable.STATUS_UPLOADING));
+            }, false);
         }
-        return null;
     }
 
     public Message findMessageWithUuid(final String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (message.getUuid().equals(uuid)) {
-                    return message;
-                }
-            }
+            return findIndexed(messageIndex.findByUuid(uuid), message -> message.getUuid().equals(uuid), false);
         }
-        return null;
     }
 
     public boolean markAsDeleted(final List<String> uuids) {
@@ -320,6 +312,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void clearMessages() {
         synchronized (this.messages) {
             this.messages.clear();
+            this.messageIndex.clear();
         }
     }
 
@@ -359,6 +352,9 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                 if (pgpDecryptionService != null) {
                     pgpDecryptionService.discard(discards);
                 }
+                for (final Message message : discards) {
+                    messageIndex.remove(message);
+                }
                 discards.clear();
                 untieMessages();
             }
@@ -381,15 +377,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findSentMessageWithUuidOrRemoteId(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())
-                        || (message.getStatus() >= Message.STATUS_SEND
-                        && id.equals(message.getRemoteMsgId()))) {
-                    return message;
-                }
-            }
+            final Iterable<Message> candidates = Iterables.concat(messageIndex.findByUuid(id), messageIndex.findByRemoteMsgId(id));
+            return findIndexed(candidates, message -> id.equals(message.getUuid())
+                    || (message.getStatus() >= Message.STATUS_SEND
+                    && id.equals(message.getRemoteMsgId())), false);
         }
-        return null;
     }
 
     public Message findMessageWithRemoteIdAndCounterpart(String id, Jid counterpart, boolean received, boolean carbon) {
@@ -416,38 +408,61 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findSentMessageWithUuid(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())) {
-                    return message;
-                }
-            }
+            return findIndexed(messageIndex.findByUuid(id), message -> id.equals(message.getUuid()), false);
         }
-        return null;
     }
 
     public Message findMessageWithRemoteId(String id, Jid counterpart) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (counterpart.equals(message.getCounterpart())
-                        && (id.equals(message.getRemoteMsgId()) || id.equals(message.getUuid()))) {
-                    return message;
-                }
-            }
+            final Iterable<Message> candidates = Iterables.concat(messageIndex.findByRemoteMsgId(id), messageIndex.findByUuid(id));
+            return findIndexed(candidates, message -> counterpart.equals(message.getCounterpart())
+                    && (id.equals(message.getRemoteMsgId()) || id.equals(message.getUuid())), false);
         }
-        return null;
     }
 
     public Message findMessageWithServerMsgId(String id) {
+        if (id == null) {
+            return null;
+        }
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id != null && id.equals(message.getServerMsgId())) {
-                    return message;
+            return findIndexed(messageIndex.findByServerMsgId(id), message -> id.equals(message.getServerMsgId()), false);
+        }
+    }
+
+    /**
+     * Returns the only candidate matching the predicate. Candidates come from {@link
+     * #messageIndex}; should more than one of them match we fall back to scanning the message
+     * list so the result is the same one a plain scan (in the given direction) would produce.
+     * Must be called while holding the lock on {@link #messages}.
+     */
+    private Message findIndexed(final Iterable<Message> candidates, final Predicate<Message> predicate, final boolean newestFirst) {
+        Message match = null;
+        for (final Message candidate : candidates) {
+            if (candidate != match && predicate.apply(candidate)) {
+                if (match != null) {
+                    return findLinear(predicate, newestFirst);
                 }
+                match = candidate;
+            }
+        }
+        return match;
+    }
+
+    private Message findLinear(final Predicate<Message> predicate, final boolean newestFirst) {
+        for (final Message message : newestFirst ? Lists.reverse(this.messages) : this.messages) {
+            if (predicate.apply(message)) {
+                return message;
             }
         }
         return null;
     }
 
+    void updateIndex(final Message message) {
+        synchronized (this.messages) {
+            messageIndex.update(message);
+        }
+    }
+
     public boolean hasMessageWithCounterpart(Jid counterpart) {
         synchronized (this.messages) {
             for (Message message : this.messages) {
@@ -592,6 +607,23 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         return unread;
     }
 
+    /**
+     * Returns the uuids of all loaded messages that were sent at exactly the given time. Used as
+     * anchor when paging backwards so that messages sharing that timestamp are neither skipped nor
+     * loaded twice.
+     */
+    public List<String> getUuidsOfMessagesSentAt(final long timestamp) {
+        final List<String> uuids = new ArrayList<>();
+        synchronized (this.messages) {
+            for (final Message message : this.messages) {
+                if (message.getTimeSent() == timestamp) {
+                    uuids.add(message.getUuid());
+                }
+            }
+        }
+        return uuids;
+    }
+
     public Message getLatestMessage() {
         synchronized (this.messages) {
             if (this.messages.size() == 0) {
@@ -781,14 +813,19 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message findDuplicateMessage(Message message) {
+        final String remoteMsgId = message.getRemoteMsgId();
+        final String body = message.getBody();
         synchronized (this.messages) {
-            for (int i = this.messages.size() - 1; i >= 0; --i) {
-                if (this.messages.get(i).similar(message)) {
-                    return this.messages.get(i);
-                }
-            }
+            final Iterable<Message> candidates = Iterables.concat(
+                    messageIndex.findByServerMsgId(message.getServerMsgId()),
+                    messageIndex.findWithEdits(),
+                    messageIndex.findByRemoteMsgId(remoteMsgId),
+                    messageIndex.findByUuid(remoteMsgId),
+                    messageIndex.findByCounterpartAndBody(message.getCounterpart(), body),
+                    messageIndex.findByCounterpartAndBody(message.getCounterpart(), body == null ? null : body.trim())
+            );
+            return findIndexed(candidates, candidate -> candidate.similar(message), true);
         }
-        return null;
     }
 
     public boolean hasDuplicateMessage(Message message) {
@@ -832,7 +869,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
             return false;
         }
         synchronized (this.messages) {
-            for (Message message : this.messages) {
+            for (final Message message : Iterables.concat(messageIndex.findByServerMsgId(serverMsgId), messageIndex.findByRemoteMsgId(remoteMsgId))) {
                 if (serverMsgId.equals(message.getServerMsgId()) || remoteMsgId.equals(message.getRemoteMsgId())) {
                     return true;
                 }
@@ -982,18 +1019,21 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void add(Message message) {
         synchronized (this.messages) {
             this.messages.add(message);
+            this.messageIndex.add(message);
         }
     }
 
     public void prepend(int offset, Message message) {
         synchronized (this.messages) {
             this.messages.add(Math.min(offset, this.messages.size()), message);
+            this.messageIndex.add(message);
         }
     }
 
     public void addAll(int index, List<Message> messages) {
         synchronized (this.messages) {
             this.messages.addAll(index, messages);
+            this.messageIndex.addAll(messages);
         }
         account.getPgpDecryptionService().decrypt(messages);
     }
@@ -1001,8 +1041,10 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void expireOldMessages(long timestamp) {
         synchronized (this.messages) {
             for (ListIterator<Message> iterator = this.messages.listIterator(); iterator.hasNext(); ) {
-                if (iterator.next().getTimeSent() < timestamp) {
+                final Message message = iterator.next();
+                if (message.getTimeSent() < timestamp) {
                     iterator.remove();
+                    messageIndex.remove(message);
                 }
             }
             untieMessages();
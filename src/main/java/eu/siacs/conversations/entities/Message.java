@@ -322,6 +322,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setCounterpart(final Jid counterpart) {
         this.counterpart = counterpart;
+        updateIndex();
     }
 
     public Contact getContact() {
@@ -341,15 +342,18 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         return body;
     }
 
-    public synchronized void setBody(String body) {
+    public void setBody(String body) {
         if (body == null) {
             throw new Error("You should not set the message body to null");
         }
-        this.body = body;
-        this.isGeoUri = null;
-        this.isEmojisOnly = null;
-        this.treatAsDownloadable = null;
-        this.fileParams = null;
+        synchronized (this) {
+            this.body = body;
+            this.isGeoUri = null;
+            this.isEmojisOnly = null;
+            this.treatAsDownloadable = null;
+            this.fileParams = null;
+        }
+        updateIndex();
     }
 
     public void setMucUser(MucOptions.User user) {
@@ -407,6 +411,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setRemoteMsgId(String id) {
         this.remoteMsgId = id;
+        updateIndex();
     }
 
     public String getServerMsgId() {
@@ -415,6 +420,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setServerMsgId(String id) {
         this.serverMsgId = id;
+        updateIndex();
     }
 
     public boolean isRead() {
@@ -455,6 +461,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
 
     public void setType(int type) {
         this.type = type;
+        updateIndex();
     }
 
     public boolean isCarbon() {
@@ -469,6 +476,7 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         final Edit edit = new Edit(edited, serverMsgId);
         if (this.edits.size() < 128 && !this.edits.contains(edit)) {
             this.edits.add(edit);
+            updateIndex();
         }
     }
 
@@ -765,16 +773,17 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         if (counterpart != null && presences.has(Strings.nullToEmpty(counterpart.getResource()))) {
             return true;
         } else if (presences.size() >= 1) {
-            counterpart = PresenceSelector.getNextCounterpart(getContact(), presences.toResourceArray()[0]);
+            setCounterpart(PresenceSelector.getNextCounterpart(getContact(), presences.toResourceArray()[0]));
             return true;
         } else {
-            counterpart = null;
+            setCounterpart(null);
             return false;
         }
     }
 
     public void setUuid(String uuid) {
         this.uuid = uuid;
+        updateIndex();
     }
 
     public String getEditedId() {
@@ -878,6 +887,12 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         }
     }
 
+    private void updateIndex() {
+        if (this.conversation instanceof Conversation) {
+            ((Conversation) this.conversation).updateIndex(this);
+        }
+    }
+
     public void untie() {
         this.mNextMessage = null;
         this.mPreviousMessage = null;
@@ -0,0 +1,205 @@
+package eu.siacs.conversations.entities;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import eu.siacs.conversations.xmpp.Jid;
+
+/**
+ * Secondary hash indexes over the messages of a {@link Conversation}. The index only narrows
+ * down lookups; callers are expected to re-check the actual predicate on every candidate since
+ * entries may point to messages whose fields changed after they were indexed. Messages notify
+ * their conversation about changes of indexed fields so that new values become findable.
+ *
+ * <p>Not thread safe. Conversation guards it with the same lock as its message list.
+ */
+final class MessageIndex {
+
+    private final SetMultimap<String, Message> byUuid = HashMultimap.create();
+    private final SetMultimap<String, Message> byRemoteMsgId = HashMultimap.create();
+    private final SetMultimap<String, Message> byServerMsgId = HashMultimap.create();
+    private final SetMultimap<CounterpartBody, Message> byCounterpartAndBody = HashMultimap.create();
+    private final Set<Message> withEdits = Sets.newIdentityHashSet();
+    private final IdentityHashMap<Message, Keys> keys = new IdentityHashMap<>();
+
+    void add(final Message message) {
+        if (keys.containsKey(message)) {
+            return;
+        }
+        final Keys messageKeys = new Keys(message);
+        keys.put(message, messageKeys);
+        put(message, messageKeys);
+    }
+
+    void addAll(final Collection<Message> messages) {
+        for (final Message message : messages) {
+            add(message);
+        }
+    }
+
+    void remove(final Message message) {
+        final Keys previous = keys.remove(message);
+        if (previous != null) {
+            remove(message, previous);
+        }
+    }
+
+    void update(final Message message) {
+        final Keys previous = keys.get(message);
+        if (previous == null) {
+            return;
+        }
+        final Keys current = new Keys(message);
+        if (previous.equals(current)) {
+            return;
+        }
+        remove(message, previous);
+        keys.put(message, current);
+        put(message, current);
+    }
+
+    void clear() {
+        byUuid.clear();
+        byRemoteMsgId.clear();
+        byServerMsgId.clear();
+        byCounterpartAndBody.clear();
+        withEdits.clear();
+        keys.clear();
+    }
+
+    Set<Message> findByUuid(final String uuid) {
+        return uuid == null ? ImmutableSet.of() : byUuid.get(uuid);
+    }
+
+    Set<Message> findByRemoteMsgId(final String remoteMsgId) {
+        return remoteMsgId == null ? ImmutableSet.of() : byRemoteMsgId.get(remoteMsgId);
+    }
+
+    Set<Message> findByServerMsgId(final String serverMsgId) {
+        return serverMsgId == null ? ImmutableSet.of() : byServerMsgId.get(serverMsgId);
+    }
+
+    Set<Message> findByCounterpartAndBody(final Jid counterpart, final String body) {
+        if (counterpart == null || body == null) {
+            return ImmutableSet.of();
+        }
+        return byCounterpartAndBody.get(new CounterpartBody(counterpart, body));
+    }
+
+    Set<Message> findWithEdits() {
+        return withEdits;
+    }
+
+    private void put(final Message message, final Keys messageKeys) {
+        if (messageKeys.uuid != null) {
+            byUuid.put(messageKeys.uuid, message);
+        }
+        if (messageKeys.remoteMsgId != null) {
+            byRemoteMsgId.put(messageKeys.remoteMsgId, message);
+        }
+        if (messageKeys.serverMsgId != null) {
+            byServerMsgId.put(messageKeys.serverMsgId, message);
+        }
+        if (messageKeys.body != null) {
+            byCounterpartAndBody.put(messageKeys.body, message);
+        }
+        if (messageKeys.url != null) {
+            byCounterpartAndBody.put(messageKeys.url, message);
+        }
+        if (messageKeys.edited) {
+            withEdits.add(message);
+        }
+    }
+
+    private void remove(final Message message, final Keys messageKeys) {
+        if (messageKeys.uuid != null) {
+            byUuid.remove(messageKeys.uuid, message);
+        }
+        if (messageKeys.remoteMsgId != null) {
+            byRemoteMsgId.remove(messageKeys.remoteMsgId, message);
+        }
+        if (messageKeys.serverMsgId != null) {
+            byServerMsgId.remove(messageKeys.serverMsgId, message);
+        }
+        if (messageKeys.body != null) {
+            byCounterpartAndBody.remove(messageKeys.body, message);
+        }
+        if (messageKeys.url != null) {
+            byCounterpartAndBody.remove(messageKeys.url, message);
+        }
+        withEdits.remove(message);
+    }
+
+    private static final class Keys {
+        private final String uuid;
+        private final String remoteMsgId;
+        private final String serverMsgId;
+        private final CounterpartBody body;
+        private final CounterpartBody url;
+        private final boolean edited;
+
+        private Keys(final Message message) {
+            this.uuid = message.getUuid();
+            this.remoteMsgId = message.getRemoteMsgId();
+            this.serverMsgId = message.getServerMsgId();
+            final Jid counterpart = message.getCounterpart();
+            final String body = message.getBody();
+            this.body = counterpart == null || body == null ? null : new CounterpartBody(counterpart, body);
+            if (counterpart != null && message.hasFileOnRemoteHost()) {
+                final String url = message.getFileParams().url;
+                this.url = url == null || url.equals(body) ? null : new CounterpartBody(counterpart, url);
+            } else {
+                this.url = null;
+            }
+            this.edited = message.edited();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Keys other = (Keys) o;
+            return edited == other.edited
+                    && Objects.equal(uuid, other.uuid)
+                    && Objects.equal(remoteMsgId, other.remoteMsgId)
+                    && Objects.equal(serverMsgId, other.serverMsgId)
+                    && Objects.equal(body, other.body)
+                    && Objects.equal(url, other.url);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(uuid, remoteMsgId, serverMsgId, body, url, edited);
+        }
+    }
+
+    private static final class CounterpartBody {
+        private final Jid counterpart;
+        private final String body;
+
+        private CounterpartBody(final Jid counterpart, final String body) {
+            this.counterpart = counterpart;
+            this.body = body;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final CounterpartBody other = (CounterpartBody) o;
+            return counterpart.equals(other.counterpart) && body.equals(other.body);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * counterpart.hashCode() + body.hashCode();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package eu.siacs.conversations.entities;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+import eu.siacs.conversations.xmpp.Jid;
+import eu.siacs.conversations.xmpp.chatstate.ChatState;
+
+/**
+ * Occupants of a {@link MucOptions} together with hash indexes by full jid, nick, real jid and
+ * chat state. Occupants are kept in the order they were added so that the first few of them can
+ * be read without touching the rest of the room.
+ *
+ * <p>Users must not change their full jid, real jid, role or affiliation while they are part of
+ * the registry; remove them first and add them again afterwards. Chat state changes are reported
+ * through {@link #updateChatState(MucOptions.User, ChatState)}.
+ *
+ * <p>Not thread safe. MucOptions guards it with its own lock.
+ */
+final class MucOccupantRegistry implements Iterable<MucOptions.User> {
+
+    // maps each user to itself so that remove() can find the instance that was actually indexed
+    private final LinkedHashMap<MucOptions.User, MucOptions.User> users = new LinkedHashMap<>();
+    private final HashMap<Jid, MucOptions.User> byFullJid = new HashMap<>();
+    private final HashMap<String, MucOptions.User> byNick = new HashMap<>();
+    private final SetMultimap<Jid, MucOptions.User> byRealJid = LinkedHashMultimap.create();
+    private final EnumMap<ChatState, LinkedHashSet<MucOptions.User>> byChatState = new EnumMap<>(ChatState.class);
+
+    boolean add(final MucOptions.User user) {
+        if (users.containsKey(user)) {
+            return false;
+        }
+        users.put(user, user);
+        final Jid fullJid = user.getFullJid();
+        if (fullJid != null) {
+            byFullJid.put(fullJid, user);
+            final String nick = fullJid.getResource();
+            if (nick != null) {
+                byNick.put(nick, user);
+            }
+        }
+        if (user.getRealJid() != null) {
+            byRealJid.put(user.getRealJid(), user);
+        }
+        chatStateSet(user.getChatState()).add(user);
+        return true;
+    }
+
+    MucOptions.User remove(final MucOptions.User user) {
+        final MucOptions.User stored = users.remove(user);
+        if (stored == null) {
+            return null;
+        }
+        final Jid fullJid = stored.getFullJid();
+        if (fullJid != null) {
+            if (byFullJid.get(fullJid) == stored) {
+                byFullJid.remove(fullJid);
+            }
+            final String nick = fullJid.getResource();
+            if (nick != null && byNick.get(nick) == stored) {
+                byNick.remove(nick);
+            }
+        }
+        if (stored.getRealJid() != null) {
+            byRealJid.remove(stored.getRealJid(), stored);
+        }
+        chatStateSet(stored.getChatState()).remove(stored);
+        return stored;
+    }
+
+    void clear() {
+        users.clear();
+        byFullJid.clear();
+        byNick.clear();
+        byRealJid.clear();
+        byChatState.clear();
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    MucOptions.User findByFullJid(final Jid jid) {
+        return byFullJid.get(jid);
+    }
+
+    MucOptions.User findByNick(final String nick) {
+        return byNick.get(nick);
+    }
+
+    MucOptions.User findByRealJid(final Jid jid) {
+        return Iterables.getFirst(byRealJid.get(jid), null);
+    }
+
+    boolean containsRealJid(final Jid jid) {
+        return byRealJid.containsKey(jid);
+    }
+
+    void updateChatState(final MucOptions.User user, final ChatState previous) {
+        if (users.get(user) != user) {
+            return;
+        }
+        chatStateSet(previous).remove(user);
+        chatStateSet(user.getChatState()).add(user);
+    }
+
+    void resetChatStates(final ChatState chatState) {
+        byChatState.clear();
+        final LinkedHashSet<MucOptions.User> all = chatStateSet(chatState);
+        for (final MucOptions.User user : users.keySet()) {
+            user.resetChatState(chatState);
+            all.add(user);
+        }
+    }
+
+    ArrayList<MucOptions.User> withChatState(final ChatState chatState, final int max) {
+        final ArrayList<MucOptions.User> list = new ArrayList<>();
+        final LinkedHashSet<MucOptions.User> users = byChatState.get(chatState);
+        if (users == null) {
+            return list;
+        }
+        for (final MucOptions.User user : users) {
+            if (list.size() >= max) {
+                break;
+            }
+            list.add(user);
+        }
+        return list;
+    }
+
+    @Override
+    public Iterator<MucOptions.User> iterator() {
+        return users.keySet().iterator();
+    }
+
+    private LinkedHashSet<MucOptions.User> chatStateSet(final ChatState chatState) {
+        LinkedHashSet<MucOptions.User> set = byChatState.get(chatState);
+        if (set == null) {
+            set = new LinkedHashSet<>();
+            byChatState.put(chatState, set);
+        }
+        return set;
+    }
+}
@@ -10,7 +10,6 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -35,7 +34,7 @@ public class MucOptions {
     public static final String STATUS_CODE_LOST_MEMBERSHIP = "322";
     public static final String STATUS_CODE_SHUTDOWN = "332";
     public static final String STATUS_CODE_TECHNICAL_REASONS = "333";
-    private final Set<User> users = new HashSet<>();
+    private final MucOccupantRegistry users = new MucOccupantRegistry();
     private final Conversation conversation;
     public OnRenameListener onRenameListener = null;
     private boolean mAutoPushConfiguration = true;
@@ -94,9 +93,7 @@ public class MucOptions {
 
     public void resetChatState() {
         synchronized (users) {
-            for (User user : users) {
-                user.chatState = Config.DEFAULT_CHAT_STATE;
-            }
+            users.resetChatStates(Config.DEFAULT_CHAT_STATE);
         }
     }
 
@@ -223,13 +220,7 @@ public class MucOptions {
         if (user != null) {
             synchronized (users) {
                 users.remove(user);
-                boolean realJidInMuc = false;
-                for (User u : users) {
-                    if (user.realJid != null && user.realJid.equals(u.realJid)) {
-                        realJidInMuc = true;
-                        break;
-                    }
-                }
+                final boolean realJidInMuc = user.realJid != null && users.containsRealJid(user.realJid);
                 boolean self = user.realJid != null && user.realJid.equals(account.getJid().asBareJid());
                 if (membersOnly()
                         && nonanonymous()
@@ -294,13 +285,17 @@ public class MucOptions {
             return null;
         }
         synchronized (users) {
-            for (User user : users) {
-                if (jid.equals(user.getFullJid())) {
-                    return user;
-                }
-            }
+            return users.findByFullJid(jid);
+        }
+    }
+
+    public User findUserByNick(final String nick) {
+        if (nick == null) {
+            return null;
+        }
+        synchronized (users) {
+            return users.findByNick(nick);
         }
-        return null;
     }
 
     public User findUserByRealJid(Jid jid) {
@@ -308,13 +303,8 @@ public class MucOptions {
             return null;
         }
         synchronized (users) {
-            for (User user : users) {
-                if (jid.equals(user.realJid)) {
-                    return user;
-                }
-            }
+            return users.findByRealJid(jid);
         }
-        return null;
     }
 
     public User findOrCreateUserByRealJid(Jid jid, Jid fullJid) {
@@ -368,16 +358,7 @@ public class MucOptions {
 
     public ArrayList<User> getUsersWithChatState(ChatState state, int max) {
         synchronized (users) {
-            ArrayList<User> list = new ArrayList<>();
-            for (User user : users) {
-                if (user.chatState == state) {
-                    list.add(user);
-                    if (list.size() >= max) {
-                        break;
-                    }
-                }
-            }
-            return list;
+            return users.withChatState(state, max);
         }
     }
 
@@ -543,9 +524,11 @@ public class MucOptions {
 
     public long[] getPgpKeyIds() {
         List<Long> ids = new ArrayList<>();
-        for (User user : this.users) {
-            if (user.getPgpKeyId() != 0) {
-                ids.add(user.getPgpKeyId());
+        synchronized (users) {
+            for (User user : this.users) {
+                if (user.getPgpKeyId() != 0) {
+                    ids.add(user.getPgpKeyId());
+                }
             }
         }
         ids.add(account.getPgpId());
@@ -896,11 +879,23 @@ public class MucOptions {
         }
 
         public boolean setChatState(ChatState chatState) {
-            if (this.chatState == chatState) {
-                return false;
+            synchronized (options.users) {
+                if (this.chatState == chatState) {
+                    return false;
+                }
+                final ChatState previous = this.chatState;
+                this.chatState = chatState;
+                options.users.updateChatState(this, previous);
+                return true;
             }
+        }
+
+        ChatState getChatState() {
+            return chatState;
+        }
+
+        void resetChatState(final ChatState chatState) {
             this.chatState = chatState;
-            return true;
         }
 
         @Override
@@ -156,6 +156,10 @@ public class ServiceDiscoveryResult {
 		return object;
 	}
 
+	public String getHash() {
+		return this.hash;
+	}
+
 	public String getVer() {
 		return Base64.encodeToString(this.ver, Base64.NO_WRAP);
 	}
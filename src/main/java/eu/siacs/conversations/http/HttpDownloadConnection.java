@@ -46,6 +46,7 @@ public class HttpDownloadConnection implements Transferable {
     private boolean acceptedAutomatically = false;
     private int mProgress = 0;
     private Call mostRecentCall;
+    private volatile SegmentedDownload segmentedDownload;
 
     HttpDownloadConnection(Message message, HttpConnectionManager manager) {
         this.message = message;
@@ -150,6 +151,10 @@ public class HttpDownloadConnection implements Transferable {
         if (call != null && !call.isCanceled()) {
             call.cancel();
         }
+        final SegmentedDownload segmentedDownload = this.segmentedDownload;
+        if (segmentedDownload != null) {
+            segmentedDownload.cancel();
+        }
         mHttpConnectionManager.finishConnection(this);
         message.setTransferable(null);
         if (message.isFileOrImage()) {
@@ -215,7 +220,9 @@ public class HttpDownloadConnection implements Transferable {
 
     private void showToastForException(final Exception e) {
         final Call call = mostRecentCall;
-        final boolean cancelled = call != null && call.isCanceled();
+        final SegmentedDownload segmentedDownload = this.segmentedDownload;
+        final boolean cancelled = (call != null && call.isCanceled())
+                || (segmentedDownload != null && segmentedDownload.isCancelled());
         if (e == null || cancelled) {
             return;
         }
@@ -395,9 +402,23 @@ public class HttpDownloadConnection implements Transferable {
                     interactive
             );
 
+            final long expected = file.getExpectedSize();
+            if (SegmentedDownload.isApplicable(file, expected)) {
+                final SegmentedDownload segmented = new SegmentedDownload(
+                        client,
+                        URL.stripFragment(mUrl),
+                        file,
+                        expected,
+                        progress -> updateProgress(Math.round(((double) progress / expected) * 100)));
+                HttpDownloadConnection.this.segmentedDownload = segmented;
+                if (segmented.run()) {
+                    return;
+                }
+                HttpDownloadConnection.this.segmentedDownload = null;
+            }
+
             final Request.Builder requestBuilder = new Request.Builder().url(URL.stripFragment(mUrl));
 
-            final long expected = file.getExpectedSize();
             final boolean tryResume = file.exists() && file.getSize() > 0 && file.getSize() < expected;
             final long resumeSize;
             if (tryResume) {
@@ -0,0 +1,364 @@
+package eu.siacs.conversations.http;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.services.AbstractConnectionManager;
+import eu.siacs.conversations.utils.FileWriterException;
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads a file as several byte ranges in parallel. The file is allocated at its full size up
+ * front and every range is written at its own offset. How far each range got is recorded in a
+ * small state file next to the download, so an interrupted download continues every range where
+ * it stopped.
+ *
+ * <p>The first range doubles as probe: if the server answers it with anything but 206 the
+ * download is left to the regular single request code path. Encrypted (aesgcm) files are
+ * downloaded as is and decrypted by the caller once all ranges are complete.
+ */
+final class SegmentedDownload {
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Config.HTTP_DOWNLOAD_SEGMENTS * 2);
+
+    private static final int STATE_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OkHttpClient client;
+    private final HttpUrl url;
+    private final File file;
+    private final File stateFile;
+    private final long size;
+    private final AbstractConnectionManager.ProgressListener listener;
+    private final List<Call> calls = new CopyOnWriteArrayList<>();
+    private final AtomicLong transmitted = new AtomicLong(0);
+    private volatile boolean cancelled = false;
+    private volatile boolean aborted = false;
+
+    private long[] starts;
+    private long[] ends;
+    private AtomicLongArray positions;
+
+    SegmentedDownload(final OkHttpClient client, final HttpUrl url, final File file, final long size, final AbstractConnectionManager.ProgressListener listener) {
+        this.client = client;
+        this.url = url;
+        this.file = file;
+        this.stateFile = new File(file.getAbsolutePath() + ".segments");
+        this.size = size;
+        this.listener = listener;
+    }
+
+    /**
+     * Whether this download should be split. A partial download that was started without
+     * segments is left to the regular resume logic.
+     */
+    static boolean isApplicable(final File file, final long size) {
+        if (Config.HTTP_DOWNLOAD_SEGMENTS < 2 || size < 2 * Config.HTTP_DOWNLOAD_MIN_SEGMENT_SIZE) {
+            return false;
+        }
+        return new File(file.getAbsolutePath() + ".segments").exists() || !file.exists() || file.length() == 0;
+    }
+
+    /**
+     * @return false if the server does not support range requests and nothing was downloaded
+     */
+    boolean run() throws IOException, FileWriterException {
+        final boolean resumed = loadState();
+        if (!resumed) {
+            createSegments();
+        }
+        transmitted.set(0);
+        for (int i = 0; i < starts.length; ++i) {
+            transmitted.addAndGet(positions.get(i) - starts[i]);
+        }
+        final List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < starts.length; ++i) {
+            if (positions.get(i) <= ends[i]) {
+                pending.add(i);
+            }
+        }
+        if (pending.isEmpty()) {
+            deleteState();
+            return true;
+        }
+        final int first = pending.get(0);
+        final Response probe = request(first);
+        if (probe.code() != 206 || !isExpectedRange(probe, first)) {
+            final int code = probe.code();
+            final String contentRange = probe.header("Content-Range");
+            probe.close();
+            // a full response or a different total means ranges or the expected size are wrong
+            final boolean unusable = code == 200 || (code == 206 && !isExpectedTotal(contentRange));
+            if (resumed && !unusable) {
+                // most likely temporary; keep what was downloaded so far for the next attempt
+                throw new IOException(String.format(Locale.ENGLISH, "unable to resume segmented download. HTTP Status code was %d", code));
+            }
+            Log.d(Config.LOGTAG, "server did not honour range request (" + code + ", Content-Range: " + contentRange + "). not using segmented download");
+            // the allocated file is useless
+            if (resumed) {
+                deleteState();
+                if (!file.delete()) {
+                    Log.d(Config.LOGTAG, "unable to delete partial download " + file.getAbsolutePath());
+                }
+            }
+            return false;
+        }
+        Log.d(Config.LOGTAG, String.format(Locale.US, "%s segmented download of %d bytes in %d ranges (%d pending)", resumed ? "resuming" : "starting", size, starts.length, pending.size()));
+        final long start = System.currentTimeMillis();
+        final File parent = file.getParentFile();
+        if (parent != null && parent.mkdirs()) {
+            Log.d(Config.LOGTAG, "created parent directories for " + file.getAbsolutePath());
+        }
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            if (randomAccessFile.length() != size) {
+                randomAccessFile.setLength(size);
+            }
+            final FileChannel channel = randomAccessFile.getChannel();
+            saveState(channel);
+            final List<Future<Void>> futures = new ArrayList<>();
+            for (final int segment : pending.subList(1, pending.size())) {
+                futures.add(EXECUTOR.submit(() -> {
+                    fetch(segment, request(segment), channel);
+                    return null;
+                }));
+            }
+            try {
+                fetch(first, probe, channel);
+                for (final Future<Void> future : futures) {
+                    await(future);
+                }
+            } catch (final IOException | FileWriterException e) {
+                abort();
+                for (final Future<Void> future : futures) {
+                    future.cancel(true);
+                }
+                saveState(channel);
+                throw e;
+            }
+            channel.force(false);
+        }
+        deleteState();
+        final long duration = Math.max(1, System.currentTimeMillis() - start);
+        Log.d(Config.LOGTAG, String.format(Locale.US, "segmented download finished after %dms (%.2f MB/s)", duration, size / (1024.0 * 1024.0) * 1000 / duration));
+        return true;
+    }
+
+    /** Called when the user cancels the download. */
+    void cancel() {
+        this.cancelled = true;
+        abort();
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** Stops the remaining ranges after one of them failed. */
+    private void abort() {
+        this.aborted = true;
+        for (final Call call : calls) {
+            call.cancel();
+        }
+    }
+
+    private Response request(final int segment) throws IOException {
+        if (cancelled || aborted) {
+            throw new IOException("download was cancelled");
+        }
+        final Request request = new Request.Builder()
+                .url(url)
+                .addHeader("Range", String.format(Locale.ENGLISH, "bytes=%d-%d", positions.get(segment), ends[segment]))
+                .build();
+        final Call call = client.newCall(request);
+        calls.add(call);
+        return call.execute();
+    }
+
+    /**
+     * Checks that the response covers exactly the requested range of a resource of the expected
+     * size. An unknown total ({@code *}) is accepted.
+     */
+    private boolean isExpectedRange(final Response response, final int segment) {
+        final String contentRange = response.header("Content-Range");
+        final String range = String.format(Locale.ENGLISH, "bytes %d-%d/", positions.get(segment), ends[segment]);
+        return contentRange != null && contentRange.startsWith(range) && isExpectedTotal(contentRange);
+    }
+
+    private boolean isExpectedTotal(final String contentRange) {
+        final int separator = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+        if (separator < 0) {
+            return false;
+        }
+        final String total = contentRange.substring(separator + 1).trim();
+        return "*".equals(total) || String.valueOf(size).equals(total);
+    }
+
+    private void fetch(final int segment, final Response response, final FileChannel channel) throws IOException, FileWriterException {
+        try (final Response r = response) {
+            if (r.code() != 206 || !isExpectedRange(r, segment)) {
+                throw new IOException(String.format(Locale.ENGLISH, "unexpected response to range request. HTTP Status code was %d", r.code()));
+            }
+            final ResponseBody body = r.body();
+            if (body == null) {
+                throw new IOException("range response had no body");
+            }
+            final InputStream inputStream = body.byteStream();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long position = positions.get(segment);
+            long sinceCheckpoint = 0;
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                if (position + count > ends[segment] + 1) {
+                    throw new IOException("server sent more data than requested");
+                }
+                try {
+                    final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+                    while (byteBuffer.hasRemaining()) {
+                        channel.write(byteBuffer, position + byteBuffer.position());
+                    }
+                } catch (final IOException e) {
+                    throw new FileWriterException(file);
+                }
+                position += count;
+                positions.set(segment, position);
+                listener.onProgress(transmitted.addAndGet(count));
+                sinceCheckpoint += count;
+                if (sinceCheckpoint >= Config.HTTP_DOWNLOAD_CHECKPOINT_SIZE) {
+                    sinceCheckpoint = 0;
+                    saveState(channel);
+                }
+            }
+            if (position != ends[segment] + 1) {
+                throw new IOException("range ended prematurely with " + (ends[segment] + 1 - position) + " bytes remaining");
+            }
+        }
+    }
+
+    private static void await(final Future<Void> future) throws IOException, FileWriterException {
+        try {
+            future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof FileWriterException) {
+                throw (FileWriterException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void createSegments() {
+        final int count = (int) Math.min(Config.HTTP_DOWNLOAD_SEGMENTS, size / Config.HTTP_DOWNLOAD_MIN_SEGMENT_SIZE);
+        final long length = size / count;
+        starts = new long[count];
+        ends = new long[count];
+        positions = new AtomicLongArray(count);
+        for (int i = 0; i < count; ++i) {
+            starts[i] = i * length;
+            ends[i] = i == count - 1 ? size - 1 : (i + 1) * length - 1;
+            positions.set(i, starts[i]);
+        }
+    }
+
+    private boolean loadState() {
+        if (!stateFile.exists()) {
+            return false;
+        }
+        if (file.length() != size) {
+            deleteState();
+            return false;
+        }
+        try (final DataInputStream inputStream = new DataInputStream(new FileInputStream(stateFile))) {
+            if (inputStream.readInt() != STATE_VERSION || inputStream.readLong() != size) {
+                throw new IOException("state does not match download");
+            }
+            final int count = inputStream.readInt();
+            if (count < 1 || count > Config.HTTP_DOWNLOAD_SEGMENTS) {
+                throw new IOException("invalid number of segments");
+            }
+            final long[] starts = new long[count];
+            final long[] ends = new long[count];
+            final AtomicLongArray positions = new AtomicLongArray(count);
+            for (int i = 0; i < count; ++i) {
+                starts[i] = inputStream.readLong();
+                ends[i] = inputStream.readLong();
+                final long position = inputStream.readLong();
+                if (starts[i] < 0 || ends[i] >= size || position < starts[i] || position > ends[i] + 1) {
+                    throw new IOException("invalid segment");
+                }
+                positions.set(i, position);
+            }
+            this.starts = starts;
+            this.ends = ends;
+            this.positions = positions;
+            return true;
+        } catch (final IOException e) {
+            Log.d(Config.LOGTAG, "unable to restore segmented download state", e);
+            deleteState();
+            return false;
+        }
+    }
+
+    /**
+     * Records the progress of every range. The positions are taken before the file contents are
+     * forced to disk, so the state never claims more than what has actually been written even
+     * while the other ranges keep going.
+     */
+    private synchronized void saveState(final FileChannel channel) throws IOException {
+        final long[] positions = new long[starts.length];
+        for (int i = 0; i < positions.length; ++i) {
+            positions[i] = this.positions.get(i);
+        }
+        channel.force(false);
+        final File temporary = new File(stateFile.getAbsolutePath() + ".tmp");
+        try (final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(temporary))) {
+            outputStream.writeInt(STATE_VERSION);
+            outputStream.writeLong(size);
+            outputStream.writeInt(starts.length);
+            for (int i = 0; i < starts.length; ++i) {
+                outputStream.writeLong(starts[i]);
+                outputStream.writeLong(ends[i]);
+                outputStream.writeLong(positions[i]);
+            }
+        }
+        if (!temporary.renameTo(stateFile)) {
+            throw new IOException("unable to write segmented download state");
+        }
+    }
+
+    private void deleteState() {
+        if (stateFile.exists() && !stateFile.delete()) {
+            Log.d(Config.LOGTAG, "unable to delete " + stateFile.getAbsolutePath());
+        }
+    }
+}
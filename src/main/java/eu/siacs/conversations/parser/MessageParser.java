@@ -360,6 +360,10 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
         if (handleErrorMessage(account, original)) {
             return;
         }
+        if (original.hasChild("data", Namespace.IBB)) {
+            mXmppConnectionService.getJingleConnectionManager().deliverIbbMessage(account, original);
+            return;
+        }
         final MessagePacket packet;
         Long timestamp = null;
         boolean isCarbon = false;
@@ -552,7 +556,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                         Message previouslySent = conversation.findSentMessageWithUuid(remoteMsgId);
                         if (previouslySent != null && previouslySent.getServerMsgId() == null && serverMsgId != null) {
                             previouslySent.setServerMsgId(serverMsgId);
-                            mXmppConnectionService.databaseBackend.updateMessage(previouslySent, false);
+                            mXmppConnectionService.databaseBackend.updateMessageAsync(previouslySent, false);
                             Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": encountered previously sent OMEMO message without serverId. updating...");
                         }
                     }
@@ -657,7 +661,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                                 conversation.getAccount().getPgpDecryptionService().decrypt(replacedMessage, false);
                             }
                         }
-                        mXmppConnectionService.getNotificationService().updateNotification();
+                        mXmppConnectionService.getNotificationService().updateNotification(conversation);
                         return;
                     } else {
                         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": received message correction but verification didn't check out");
@@ -739,7 +743,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                 processMessageReceipts(account, packet, remoteMsgId, query);
             }
 
-            mXmppConnectionService.databaseBackend.createMessage(message);
+            mXmppConnectionService.databaseBackend.createMessageAsync(message);
             final HttpConnectionManager manager = this.mXmppConnectionService.getHttpConnectionManager();
             if (message.trusted() && message.treatAsDownloadable() && manager.getAutoAcceptFileSize() > 0) {
                 manager.createNewDownloadConnection(message);
@@ -874,7 +878,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                                     message.setTime(timestamp);
                                     message.setBody(new RtpSessionStatus(false, 0).toString());
                                     c.add(message);
-                                    mXmppConnectionService.databaseBackend.createMessage(message);
+                                    mXmppConnectionService.databaseBackend.createMessageAsync(message);
                                 }
                             } else if ("proceed".equals(action)) {
                                 //status needs to be flipped to find the original propose
@@ -921,7 +925,7 @@ public class MessageParser extends AbstractParser implements OnMessagePacketRece
                                         c.add(message);
                                     }
                                     query.incrementActualMessageCount();
-                                    mXmppConnectionService.databaseBackend.createMessage(message);
+                                    mXmppConnectionService.databaseBackend.createMessageAsync(message);
                                 }
                             }
                         }
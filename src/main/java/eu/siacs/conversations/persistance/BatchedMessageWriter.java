@@ -0,0 +1,263 @@
+package eu.siacs.conversations.persistance;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Message;
+
+/**
+ * Write-behind queue for message inserts and updates. Operations are committed by a single
+ * thread in the order they were submitted (which keeps per conversation ordering intact) and
+ * grouped into one transaction per batch. A batch is committed once it reaches {@link
+ * Config#MESSAGE_WRITE_BATCH_SIZE} operations, {@link Config#MESSAGE_WRITE_BATCH_DELAY}
+ * milliseconds after its first operation, or as soon as someone calls {@link #flush()}.
+ *
+ * <p>Content values are taken from the message at commit time so changes made to a message
+ * while its insert is still queued end up in the database.
+ *
+ * <p>If a batch fails as a whole, its operations are retried one by one so a single bad row does
+ * not take the rest of the batch with it. Operations that still fail are counted in {@link
+ * #getFailed()}; {@link #flush()} does not hide them, callers that must know whether their
+ * writes made it to disk compare that count before and after.
+ */
+class BatchedMessageWriter implements Runnable {
+
+    private static final int CREATE = 0;
+    private static final int UPDATE = 1;
+    private static final int UPDATE_WITH_BODY = 2;
+    private static final int FLUSH = 3;
+
+    private static final Operation FLUSH_OPERATION = new Operation(FLUSH, null);
+
+    private final DatabaseBackend databaseBackend;
+    private final LinkedBlockingQueue<Operation> queue = new LinkedBlockingQueue<>();
+    private final Object lock = new Object();
+    private final HashMap<String, Integer> pending = new HashMap<>();
+    private long submitted = 0;
+    private long processed = 0;
+    private long failed = 0;
+    private Thread thread = null;
+
+    private final AtomicLong batchCount = new AtomicLong(0);
+    private final AtomicLong operationCount = new AtomicLong(0);
+    private final AtomicLong totalCommitTime = new AtomicLong(0);
+    private volatile long lastCommitTime = 0;
+    private volatile long maxCommitTime = 0;
+
+    BatchedMessageWriter(final DatabaseBackend databaseBackend) {
+        this.databaseBackend = databaseBackend;
+    }
+
+    void create(final Message message) {
+        submit(new Operation(CREATE, message));
+    }
+
+    void update(final Message message, final boolean includeBody) {
+        submit(new Operation(includeBody ? UPDATE_WITH_BODY : UPDATE, message));
+    }
+
+    private void submit(final Operation operation) {
+        synchronized (lock) {
+            ++submitted;
+            final Integer count = pending.get(operation.uuid);
+            pending.put(operation.uuid, count == null ? 1 : count + 1);
+            queue.add(operation);
+            if (thread == null) {
+                thread = new Thread(this, "BatchedMessageWriter");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /** @return whether an insert or update of the message with that uuid is still queued */
+    boolean isPending(final String uuid) {
+        synchronized (lock) {
+            return pending.containsKey(uuid);
+        }
+    }
+
+    /**
+     * Blocks until every operation submitted before this call has been processed, that is either
+     * committed or counted as failed. Returns immediately if there is nothing pending.
+     */
+    void flush() {
+        synchronized (lock) {
+            if (processed >= submitted || Thread.currentThread() == thread) {
+                return;
+            }
+            final long target = submitted;
+            queue.add(FLUSH_OPERATION);
+            try {
+                while (processed < target) {
+                    lock.wait();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    int getQueueDepth() {
+        synchronized (lock) {
+            return (int) (submitted - processed);
+        }
+    }
+
+    /** @return the number of operations that could not be persisted since the writer started */
+    long getFailed() {
+        synchronized (lock) {
+            return failed;
+        }
+    }
+
+    String getStatistics() {
+        final long batches = batchCount.get();
+        final long operations = operationCount.get();
+        return String.format(
+                Locale.US,
+                "queue=%d, failed=%d, batches=%d, operations/batch=%.1f, avg commit=%dms, last commit=%dms, max commit=%dms",
+                getQueueDepth(),
+                getFailed(),
+                batches,
+                batches == 0 ? 0.0 : (double) operations / batches,
+                batches == 0 ? 0 : totalCommitTime.get() / batches,
+                lastCommitTime,
+                maxCommitTime);
+    }
+
+    @Override
+    public void run() {
+        final List<Operation> batch = new ArrayList<>();
+        while (true) {
+            try {
+                collect(batch);
+            } catch (final InterruptedException e) {
+                Log.d(Config.LOGTAG, "batched message writer was interrupted");
+            }
+            int failures = batch.size();
+            try {
+                failures = commit(batch);
+            } finally {
+                synchronized (lock) {
+                    for (final Operation operation : batch) {
+                        final int count = pending.get(operation.uuid);
+                        if (count > 1) {
+                            pending.put(operation.uuid, count - 1);
+                        } else {
+                            pending.remove(operation.uuid);
+                        }
+                    }
+                    processed += batch.size();
+                    failed += failures;
+                    lock.notifyAll();
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void collect(final List<Operation> batch) throws InterruptedException {
+        final Operation first = queue.take();
+        if (first.type == FLUSH) {
+            return;
+        }
+        batch.add(first);
+        final long deadline = SystemClock.elapsedRealtime() + Config.MESSAGE_WRITE_BATCH_DELAY;
+        while (batch.size() < Config.MESSAGE_WRITE_BATCH_SIZE) {
+            final long remaining = deadline - SystemClock.elapsedRealtime();
+            final Operation next = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+            if (next == null || next.type == FLUSH) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    /** @return the number of operations that could not be persisted */
+    private int commit(final List<Operation> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        final SQLiteDatabase db = databaseBackend.getWritableDatabase();
+        int failures = 0;
+        try {
+            db.beginTransaction();
+            try {
+                for (final Operation operation : batch) {
+                    execute(db, operation);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (final RuntimeException e) {
+            Log.e(Config.LOGTAG, "unable to commit batch of " + batch.size() + " messages. retrying one by one", e);
+            for (final Operation operation : batch) {
+                try {
+                    execute(db, operation);
+                } catch (final RuntimeException individual) {
+                    Log.e(Config.LOGTAG, "unable to persist message " + operation.uuid, individual);
+                    ++failures;
+                }
+            }
+        }
+        final long duration = SystemClock.elapsedRealtime() - start;
+        batchCount.incrementAndGet();
+        operationCount.addAndGet(batch.size());
+        totalCommitTime.addAndGet(duration);
+        lastCommitTime = duration;
+        if (duration > maxCommitTime) {
+            maxCommitTime = duration;
+        }
+        if (batch.size() > 1) {
+            Log.d(Config.LOGTAG, "persisted " + batch.size() + " messages in " + duration + "ms (" + getQueueDepth() + " pending)");
+        }
+        return failures;
+    }
+
+    private static void execute(final SQLiteDatabase db, final Operation operation) {
+        final Message message = operation.message;
+        switch (operation.type) {
+            case CREATE:
+                // insert() swallows errors; a row that already exists is not one
+                db.insertWithOnConflict(Message.TABLENAME, null, message.getContentValues(), SQLiteDatabase.CONFLICT_IGNORE);
+                break;
+            case UPDATE:
+            case UPDATE_WITH_BODY:
+                final ContentValues contentValues = message.getContentValues();
+                contentValues.remove(Message.UUID);
+                if (operation.type == UPDATE) {
+                    contentValues.remove(Message.BODY);
+                }
+                db.update(Message.TABLENAME, contentValues, Message.UUID + "=?", new String[]{message.getUuid()});
+                break;
+            default:
+                throw new IllegalStateException("unknown operation type " + operation.type);
+        }
+    }
+
+    private static class Operation {
+        private final int type;
+        private final Message message;
+        private final String uuid;
+
+        private Operation(final int type, final Message message) {
+            this.type = type;
+            this.message = message;
+            this.uuid = message == null ? null : message.getUuid();
+        }
+    }
+}
@@ -6,8 +6,10 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
@@ -31,6 +33,8 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -64,7 +68,7 @@ import eu.siacs.conversations.xmpp.mam.MamReference;
 public class DatabaseBackend extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "history";
-    private static final int DATABASE_VERSION = 50;
+    private static final int DATABASE_VERSION = 51;
 
     private static boolean requiresMessageIndexRebuild = false;
     private static DatabaseBackend instance = null;
@@ -168,8 +172,20 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + "UNIQUE(" + Resolver.Result.DOMAIN + ") ON CONFLICT REPLACE"
             + ");";
 
+    private static final String[] CONTACT_COLUMNS = {
+            Contact.ACCOUNT, Contact.SYSTEMNAME, Contact.SERVERNAME, Contact.PRESENCE_NAME, Contact.JID,
+            Contact.OPTIONS, Contact.SYSTEMACCOUNT, Contact.PHOTOURI, Contact.KEYS, Contact.AVATAR,
+            Contact.LAST_PRESENCE, Contact.LAST_TIME, Contact.GROUPS, Contact.RTP_CAPABILITY
+    };
+    private static final String UPSERT_CONTACT_STATEMENT = "INSERT OR REPLACE INTO " + Contact.TABLENAME
+            + "(" + TextUtils.join(",", CONTACT_COLUMNS) + ") VALUES ("
+            + TextUtils.join(",", Collections.nCopies(CONTACT_COLUMNS.length, "?")) + ")";
+    private static final String DELETE_CONTACT_STATEMENT = "DELETE FROM " + Contact.TABLENAME
+            + " WHERE " + Contact.ACCOUNT + "=? AND " + Contact.JID + "=?";
+
     private static final String CREATE_MESSAGE_TIME_INDEX = "CREATE INDEX message_time_index ON " + Message.TABLENAME + "(" + Message.TIME_SENT + ")";
     private static final String CREATE_MESSAGE_CONVERSATION_INDEX = "CREATE INDEX message_conversation_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + ")";
+    private static final String CREATE_MESSAGE_CONVERSATION_TIME_INDEX = "CREATE INDEX message_conversation_time_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.TIME_SENT + ")";
     private static final String CREATE_MESSAGE_DELETED_INDEX = "CREATE INDEX message_deleted_index ON " + Message.TABLENAME + "(" + Message.DELETED + ")";
     private static final String CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX = "CREATE INDEX message_file_path_index ON " + Message.TABLENAME + "(" + Message.RELATIVE_FILE_PATH + ")";
     private static final String CREATE_MESSAGE_TYPE_INDEX = "CREATE INDEX message_type_index ON " + Message.TABLENAME + "(" + Message.TYPE + ")";
@@ -180,8 +196,12 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     private static final String CREATE_MESSAGE_DELETE_TRIGGER = "CREATE TRIGGER after_message_delete AFTER DELETE ON " + Message.TABLENAME + " BEGIN DELETE FROM messages_index WHERE rowid=OLD.rowid; END;";
     private static final String COPY_PREEXISTING_ENTRIES = "INSERT INTO messages_index(messages_index) VALUES('rebuild');";
 
+    private final BatchedMessageWriter batchedMessageWriter = new BatchedMessageWriter(this);
+
     private DatabaseBackend(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // lets the interactive database lane read while the write lane commits
+        setWriteAheadLoggingEnabled(true);
     }
 
     private static ContentValues createFingerprintStatusContentValues(FingerprintStatus.Trust trust, boolean active) {
@@ -265,7 +285,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
                 + Conversation.TABLENAME + "(" + Conversation.UUID
                 + ") ON DELETE CASCADE);");
         db.execSQL(CREATE_MESSAGE_TIME_INDEX);
-        db.execSQL(CREATE_MESSAGE_CONVERSATION_INDEX);
+        db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
         db.execSQL(CREATE_MESSAGE_DELETED_INDEX);
         db.execSQL(CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX);
         db.execSQL(CREATE_MESSAGE_TYPE_INDEX);
@@ -596,6 +616,13 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             db.execSQL("ALTER TABLE " + Account.TABLENAME + " ADD COLUMN " + Account.PINNED_CHANNEL_BINDING + " TEXT");
 
         }
+        if (oldVersion < 51 && newVersion >= 51) {
+            final long start = SystemClock.elapsedRealtime();
+            // the composite index starts with the conversation uuid and makes the old one redundant
+            db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
+            db.execSQL("DROP INDEX IF EXISTS message_conversation_index");
+            Log.d(Config.LOGTAG, "created conversation/time message index in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
     }
 
     private void canonicalizeJids(SQLiteDatabase db) {
@@ -687,6 +714,39 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.insert(Message.TABLENAME, null, message.getContentValues());
     }
 
+    /**
+     * Queues the insert on the batched message writer instead of hitting the database on the
+     * calling thread. Use {@link #flushPendingMessageWrites()} when the message has to be on disk.
+     */
+    public void createMessageAsync(final Message message) {
+        batchedMessageWriter.create(message);
+    }
+
+    public void updateMessageAsync(final Message message, final boolean includeBody) {
+        batchedMessageWriter.update(message, includeBody);
+    }
+
+    public void flushPendingMessageWrites() {
+        batchedMessageWriter.flush();
+    }
+
+    /**
+     * @return the number of queued message writes that could not be persisted so far. Compare
+     *     the values before and after {@link #flushPendingMessageWrites()} to find out whether
+     *     writes in between were lost.
+     */
+    public long getFailedMessageWrites() {
+        return batchedMessageWriter.getFailed();
+    }
+
+    public int getPendingMessageWrites() {
+        return batchedMessageWriter.getQueueDepth();
+    }
+
+    public String getMessageWriterStatistics() {
+        return batchedMessageWriter.getStatistics();
+    }
+
     public void createAccount(Account account) {
         SQLiteDatabase db = this.getWritableDatabase();
         db.insert(Account.TABLENAME, null, account.getContentValues());
@@ -718,6 +778,25 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return result;
     }
 
+    /**
+     * Returns the most recently stored discovery results, newest first. Results are replaced on
+     * every insert so the rowid reflects when a result was last fetched.
+     */
+    public List<ServiceDiscoveryResult> getRecentDiscoveryResults(final int limit) {
+        final List<ServiceDiscoveryResult> results = new ArrayList<>();
+        final SQLiteDatabase db = this.getReadableDatabase();
+        try (final Cursor cursor = db.query(ServiceDiscoveryResult.TABLENAME, null, null, null, null, null, "rowid desc", String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                try {
+                    results.add(new ServiceDiscoveryResult(cursor));
+                } catch (final JSONException e) {
+                    Log.d(Config.LOGTAG, "unable to parse stored discovery result", e);
+                }
+            }
+        }
+        return results;
+    }
+
     public void saveResolverResult(String domain, Resolver.Result result) {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues contentValues = result.toContentValues();
@@ -789,34 +868,128 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public ArrayList<Message> getMessages(Conversation conversation, int limit, long timestamp) {
+        return getMessages(conversation, limit, timestamp, null);
+    }
+
+    /**
+     * Loads the page of messages preceding the given position. Messages are ordered by time sent
+     * and then by rowid. {@code loadedAtTimestamp} names the messages already loaded that were sent
+     * at exactly {@code timestamp}; the page continues below the lowest rowid among them, so other
+     * messages sharing that timestamp are neither skipped nor loaded twice. Both orderings are served straight from the
+     * (conversationUuid, timeSent) index, which implicitly ends with the rowid.
+     */
+    public ArrayList<Message> getMessages(final Conversation conversation, final int limit, final long timestamp, final Collection<String> loadedAtTimestamp) {
+        flushPendingMessageWrites();
         ArrayList<Message> list = new ArrayList<>();
         SQLiteDatabase db = this.getReadableDatabase();
+        final String orderBy = Message.TIME_SENT + " DESC, rowid DESC";
+        final long beforeRowId = loadedAtTimestamp == null || timestamp == -1 ? -1 : getLowestMessageRowId(db, loadedAtTimestamp);
         Cursor cursor;
         if (timestamp == -1) {
             String[] selectionArgs = {conversation.getUuid()};
             cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
-                    + "=?", selectionArgs, null, null, Message.TIME_SENT
-                    + " DESC", String.valueOf(limit));
-        } else {
+                    + "=?", selectionArgs, null, null, orderBy, String.valueOf(limit));
+        } else if (beforeRowId == -1) {
             String[] selectionArgs = {conversation.getUuid(),
                     Long.toString(timestamp)};
             cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
                             + "=? and " + Message.TIME_SENT + "<?", selectionArgs,
-                    null, null, Message.TIME_SENT + " DESC",
+                    null, null, orderBy,
+                    String.valueOf(limit));
+        } else {
+            final String ts = Long.toString(timestamp);
+            String[] selectionArgs = {conversation.getUuid(), ts, ts, Long.toString(beforeRowId)};
+            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
+                            + "=? and " + Message.TIME_SENT + "<=? and (" + Message.TIME_SENT + "<? or rowid<?)", selectionArgs,
+                    null, null, orderBy,
                     String.valueOf(limit));
         }
         CursorUtils.upgradeCursorWindowSize(cursor);
         while (cursor.moveToNext()) {
             try {
-                list.add(0, Message.fromCursor(cursor, conversation));
+                list.add(Message.fromCursor(cursor, conversation));
             } catch (Exception e) {
                 Log.e(Config.LOGTAG, "unable to restore message");
             }
         }
         cursor.close();
+        Collections.reverse(list);
         return list;
     }
 
+    /**
+     * Loads the latest {@code limit} messages of each of the given conversations, oldest first.
+     * Instead of one query per conversation this issues one query per chunk of conversations
+     * that picks the newest rows of every conversation through the (conversationUuid, timeSent)
+     * index. Chunks keep the number of bound arguments below SQLite's limit.
+     */
+    public Map<String, List<Message>> getLatestMessages(final Collection<Conversation> conversations, final int limit) {
+        flushPendingMessageWrites();
+        final Map<String, List<Message>> messages = new HashMap<>();
+        final Map<String, Conversation> chunk = new HashMap<>();
+        for (final Conversation conversation : conversations) {
+            chunk.put(conversation.getUuid(), conversation);
+            if (chunk.size() >= Config.MESSAGE_RESTORE_CHUNK_SIZE) {
+                getLatestMessages(chunk, limit, messages);
+                chunk.clear();
+            }
+        }
+        if (chunk.size() > 0) {
+            getLatestMessages(chunk, limit, messages);
+        }
+        return messages;
+    }
+
+    private void getLatestMessages(final Map<String, Conversation> conversations, final int limit, final Map<String, List<Message>> messages) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String placeholders = TextUtils.join(",", Collections.nCopies(conversations.size(), "?"));
+        final String sql = "SELECT m.* FROM " + Conversation.TABLENAME + " c JOIN " + Message.TABLENAME + " m ON m.rowid IN ("
+                + "SELECT rowid FROM " + Message.TABLENAME + " WHERE " + Message.CONVERSATION + "=c." + Conversation.UUID
+                + " ORDER BY " + Message.TIME_SENT + " DESC, rowid DESC LIMIT " + limit + ")"
+                + " WHERE c." + Conversation.UUID + " IN (" + placeholders + ")"
+                + " ORDER BY m." + Message.CONVERSATION + ", m." + Message.TIME_SENT + ", m.rowid";
+        final String[] selectionArgs = conversations.keySet().toArray(new String[0]);
+        try (final Cursor cursor = db.rawQuery(sql, selectionArgs)) {
+            CursorUtils.upgradeCursorWindowSize(cursor);
+            final int conversationIndex = cursor.getColumnIndex(Message.CONVERSATION);
+            String currentUuid = null;
+            List<Message> current = null;
+            while (cursor.moveToNext()) {
+                final String uuid = cursor.getString(conversationIndex);
+                if (current == null || !uuid.equals(currentUuid)) {
+                    currentUuid = uuid;
+                    current = new ArrayList<>(limit);
+                    messages.put(uuid, current);
+                }
+                try {
+                    current.add(Message.fromCursor(cursor, conversations.get(uuid)));
+                } catch (Exception e) {
+                    Log.e(Config.LOGTAG, "unable to restore message");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the lowest rowid of the given messages or -1 if none of them is stored
+     */
+    private static long getLowestMessageRowId(final SQLiteDatabase db, final Collection<String> uuids) {
+        long lowest = -1;
+        final List<String> all = new ArrayList<>(uuids);
+        // stay below SQLite's limit of host parameters per statement
+        for (int i = 0; i < all.size(); i += 500) {
+            final List<String> batch = all.subList(i, Math.min(all.size(), i + 500));
+            final String selection = Message.UUID + " IN (" + TextUtils.join(",", Collections.nCopies(batch.size(), "?")) + ")";
+            try (final Cursor cursor = db.query(Message.TABLENAME, new String[]{"min(rowid)"}, selection, batch.toArray(new String[0]), null, null, null)) {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    final long rowId = cursor.getLong(0);
+                    lowest = lowest == -1 ? rowId : Math.min(lowest, rowId);
+                }
+            }
+        }
+        return lowest;
+    }
+
     public Cursor getMessageSearchCursor(final List<String> term, final String uuid) {
         final SQLiteDatabase db = this.getReadableDatabase();
         final StringBuilder SQL = new StringBuilder();
@@ -1013,6 +1186,11 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public boolean updateMessage(Message message, boolean includeBody) {
+        if (batchedMessageWriter.isPending(message.getUuid())) {
+            // queue behind the pending insert instead of waiting for it; this is called from the UI thread
+            batchedMessageWriter.update(message, includeBody);
+            return true;
+        }
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {message.getUuid()};
         ContentValues contentValues = message.getContentValues();
@@ -1024,6 +1202,9 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public boolean updateMessage(Message message, String uuid) {
+        if (batchedMessageWriter.isPending(uuid)) {
+            flushPendingMessageWrites();
+        }
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {uuid};
         return db.update(Message.TABLENAME, message.getContentValues(), Message.UUID + "=?", args) == 1;
@@ -1040,29 +1221,65 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Persists the contacts that changed since the last call. Contacts track their own dirty
+     * state; clean ones are skipped entirely so a roster push touching a single contact results
+     * in a single row being written.
+     */
     public void writeRoster(final Roster roster) {
         long start = SystemClock.elapsedRealtime();
         final Account account = roster.getAccount();
+        final List<Contact> written = new ArrayList<>();
         final SQLiteDatabase db = this.getWritableDatabase();
         db.beginTransaction();
-        for (Contact contact : roster.getContacts()) {
-            if (contact.getOption(Contact.Options.IN_ROSTER) || contact.hasAvatarOrPresenceName() || contact.getOption(Contact.Options.SYNCED_VIA_OTHER)) {
-                db.insert(Contact.TABLENAME, null, contact.getContentValues());
-            } else {
-                String where = Contact.ACCOUNT + "=? AND " + Contact.JID + "=?";
-                String[] whereArgs = {account.getUuid(), contact.getJid().toString()};
-                db.delete(Contact.TABLENAME, where, whereArgs);
+        boolean successful = false;
+        try (final SQLiteStatement upsert = db.compileStatement(UPSERT_CONTACT_STATEMENT);
+             final SQLiteStatement delete = db.compileStatement(DELETE_CONTACT_STATEMENT)) {
+            for (Contact contact : roster.getContacts()) {
+                if (!contact.clearDirty()) {
+                    continue;
+                }
+                written.add(contact);
+                if (contact.getOption(Contact.Options.IN_ROSTER) || contact.hasAvatarOrPresenceName() || contact.getOption(Contact.Options.SYNCED_VIA_OTHER)) {
+                    final ContentValues values = contact.getContentValues();
+                    for (int i = 0; i < CONTACT_COLUMNS.length; ++i) {
+                        bind(upsert, i + 1, values.get(CONTACT_COLUMNS[i]));
+                    }
+                    upsert.executeInsert();
+                } else {
+                    delete.bindString(1, account.getUuid());
+                    delete.bindString(2, contact.getJid().toString());
+                    delete.executeUpdateDelete();
+                }
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            if (!successful) {
+                for (final Contact contact : written) {
+                    contact.markDirty();
+                }
             }
         }
-        db.setTransactionSuccessful();
-        db.endTransaction();
         account.setRosterVersion(roster.getVersion());
         updateAccount(account);
         long duration = SystemClock.elapsedRealtime() - start;
-        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": persisted roster in " + duration + "ms");
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": persisted " + written.size() + " changed contacts in " + duration + "ms");
+    }
+
+    private static void bind(final SQLiteStatement statement, final int index, final Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else {
+            statement.bindString(index, value.toString());
+        }
     }
 
     public void deleteMessagesInConversation(Conversation conversation) {
+        flushPendingMessageWrites();
         long start = SystemClock.elapsedRealtime();
         final SQLiteDatabase db = this.getWritableDatabase();
         db.beginTransaction();
@@ -1074,6 +1291,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void expireOldMessages(long timestamp) {
+        flushPendingMessageWrites();
         final String[] args = {String.valueOf(timestamp)};
         SQLiteDatabase db = this.getReadableDatabase();
         db.beginTransaction();
@@ -1083,6 +1301,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public MamReference getLastMessageReceived(Account account) {
+        flushPendingMessageWrites();
         Cursor cursor = null;
         try {
             SQLiteDatabase db = this.getReadableDatabase();
@@ -21,6 +21,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.provider.OpenableColumns;
 import android.system.Os;
@@ -61,6 +62,11 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -78,7 +84,13 @@ import eu.siacs.conversations.xmpp.pep.Avatar;
 
 public class FileBackend {
 
-    private static final Object THUMBNAIL_LOCK = new Object();
+    private static final ExecutorService THUMBNAIL_EXECUTOR =
+            Executors.newFixedThreadPool(
+                    Math.max(
+                            1,
+                            Math.min(
+                                    Config.THUMBNAIL_MAX_WORKERS,
+                                    Runtime.getRuntime().availableProcessors())));
 
     private static final SimpleDateFormat IMAGE_DATE_FORMAT =
             new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
@@ -86,6 +98,12 @@ public class FileBackend {
     private static final String FILE_PROVIDER = ".files";
     private static final float IGNORE_PADDING = 0.15f;
     private final XmppConnectionService mXmppConnectionService;
+    private final ConcurrentHashMap<String, Object> thumbnailLocks = new ConcurrentHashMap<>();
+    private ThumbnailDiskCache thumbnailDiskCache = null;
+    private final AtomicLong thumbnailMemoryHits = new AtomicLong(0);
+    private final AtomicLong thumbnailDiskHits = new AtomicLong(0);
+    private final AtomicLong thumbnailDecodes = new AtomicLong(0);
+    private final AtomicLong thumbnailDecodeTime = new AtomicLong(0);
 
     private static final List<String> STORAGE_TYPES;
 
@@ -434,9 +452,49 @@ public class FileBackend {
         final String key = "attachment_" + attachment.getUuid().toString() + "_" + size;
         final LruCache<String, Bitmap> cache = mXmppConnectionService.getBitmapCache();
         Bitmap bitmap = cache.get(key);
-        if (bitmap != null || cacheOnly) {
+        if (bitmap != null) {
+            thumbnailMemoryHits.incrementAndGet();
             return bitmap;
         }
+        if (cacheOnly) {
+            return null;
+        }
+        final Object lock = getThumbnailLock(key);
+        try {
+            synchronized (lock) {
+                bitmap = cache.get(key);
+                if (bitmap != null) {
+                    thumbnailMemoryHits.incrementAndGet();
+                    return bitmap;
+                }
+                final Uri uri = attachment.getUri();
+                final String diskKey =
+                        "file".equals(uri.getScheme()) && uri.getPath() != null
+                                ? ThumbnailDiskCache.key(new File(uri.getPath()), "attachment", size)
+                                : null;
+                bitmap = diskKey == null ? null : getThumbnailDiskCache().get(diskKey);
+                if (bitmap != null) {
+                    thumbnailDiskHits.incrementAndGet();
+                } else {
+                    final long start = SystemClock.elapsedRealtime();
+                    bitmap = renderPreview(attachment, size);
+                    recordThumbnailDecode(start);
+                    if (bitmap != null && diskKey != null) {
+                        getThumbnailDiskCache().put(diskKey, bitmap);
+                    }
+                }
+                if (bitmap != null) {
+                    cache.put(key, bitmap);
+                }
+                return bitmap;
+            }
+        } finally {
+            thumbnailLocks.remove(key, lock);
+        }
+    }
+
+    private Bitmap renderPreview(final Attachment attachment, final int size) {
+        Bitmap bitmap;
         final String mime = attachment.getMime();
         if ("application/pdf".equals(mime)) {
             bitmap = cropCenterSquarePdf(attachment.getUri(), size);
@@ -468,9 +526,6 @@ public class FileBackend {
                 bitmap = withGifOverlay;
             }
         }
-        if (bitmap != null) {
-            cache.put(key, bitmap);
-        }
         return bitmap;
     }
 
@@ -951,31 +1006,103 @@ public class FileBackend {
     }
 
     public Drawable getThumbnail(Message message, Resources res, int size, boolean cacheOnly) throws IOException {
-        final String uuid = message.getUuid();
+        final String key = message.getUuid() + "_" + size;
         final LruCache<String, Drawable> cache = mXmppConnectionService.getDrawableCache();
-        Drawable thumbnail = cache.get(uuid);
-        if ((thumbnail == null) && (!cacheOnly)) {
-            synchronized (THUMBNAIL_LOCK) {
-                thumbnail = cache.get(uuid);
+        Drawable thumbnail = cache.get(key);
+        if (thumbnail != null) {
+            thumbnailMemoryHits.incrementAndGet();
+            return thumbnail;
+        }
+        if (cacheOnly) {
+            return null;
+        }
+        final Object lock = getThumbnailLock(key);
+        try {
+            synchronized (lock) {
+                thumbnail = cache.get(key);
                 if (thumbnail != null) {
+                    thumbnailMemoryHits.incrementAndGet();
                     return thumbnail;
                 }
-                DownloadableFile file = getFile(message);
-                final String mime = file.getMimeType();
-                if ("application/pdf".equals(mime)) {
-                    thumbnail = new BitmapDrawable(res, getPdfDocumentPreview(file, size));
-                } else if (mime.startsWith("video/")) {
-                    thumbnail = new BitmapDrawable(res, getVideoPreview(file, size));
+                final DownloadableFile file = getFile(message);
+                final String diskKey = ThumbnailDiskCache.key(file, "message", size);
+                final Bitmap cached = diskKey == null ? null : getThumbnailDiskCache().get(diskKey);
+                if (cached != null) {
+                    thumbnailDiskHits.incrementAndGet();
+                    thumbnail = new BitmapDrawable(res, cached);
                 } else {
-                    thumbnail = getImagePreview(file, res, size, mime);
-                    if (thumbnail == null) {
-                        throw new FileNotFoundException();
+                    final long start = SystemClock.elapsedRealtime();
+                    thumbnail = renderThumbnail(file, res, size);
+                    recordThumbnailDecode(start);
+                    // animated drawables are not cached on disk; they would lose their animation
+                    if (diskKey != null && thumbnail instanceof BitmapDrawable) {
+                        final Bitmap bitmap = ((BitmapDrawable) thumbnail).getBitmap();
+                        if (bitmap != null) {
+                            getThumbnailDiskCache().put(diskKey, bitmap);
+                        }
                     }
                 }
-                cache.put(uuid, thumbnail);
+                cache.put(key, thumbnail);
+                return thumbnail;
             }
+        } finally {
+            thumbnailLocks.remove(key, lock);
         }
-        return thumbnail;
+    }
+
+    private Drawable renderThumbnail(final DownloadableFile file, final Resources res, final int size) throws IOException {
+        final String mime = file.getMimeType();
+        if ("application/pdf".equals(mime)) {
+            return new BitmapDrawable(res, getPdfDocumentPreview(file, size));
+        } else if (mime.startsWith("video/")) {
+            return new BitmapDrawable(res, getVideoPreview(file, size));
+        } else {
+            final Drawable thumbnail = getImagePreview(file, res, size, mime);
+            if (thumbnail == null) {
+                throw new FileNotFoundException();
+            }
+            return thumbnail;
+        }
+    }
+
+    private Object getThumbnailLock(final String key) {
+        final Object lock = new Object();
+        final Object existing = thumbnailLocks.putIfAbsent(key, lock);
+        return existing == null ? lock : existing;
+    }
+
+    private synchronized ThumbnailDiskCache getThumbnailDiskCache() {
+        if (thumbnailDiskCache == null) {
+            thumbnailDiskCache =
+                    new ThumbnailDiskCache(
+                            new File(mXmppConnectionService.getCacheDir(), "thumbnails"),
+                            Config.THUMBNAIL_DISK_CACHE_SIZE);
+        }
+        return thumbnailDiskCache;
+    }
+
+    private void recordThumbnailDecode(final long start) {
+        thumbnailDecodes.incrementAndGet();
+        thumbnailDecodeTime.addAndGet(SystemClock.elapsedRealtime() - start);
+    }
+
+    public static Executor getThumbnailExecutor() {
+        return THUMBNAIL_EXECUTOR;
+    }
+
+    public String getThumbnailStatistics() {
+        final long memoryHits = thumbnailMemoryHits.get();
+        final long diskHits = thumbnailDiskHits.get();
+        final long decodes = thumbnailDecodes.get();
+        final long total = memoryHits + diskHits + decodes;
+        return String.format(
+                Locale.US,
+                "memory hits=%d, disk hits=%d, decodes=%d, hit rate=%.1f%%, avg decode=%dms",
+                memoryHits,
+                diskHits,
+                decodes,
+                total == 0 ? 0.0 : (memoryHits + diskHits) * 100.0 / total,
+                decodes == 0 ? 0 : thumbnailDecodeTime.get() / decodes);
     }
 
     public Bitmap getThumbnailBitmap(Message message, Resources res, int size) throws IOException {
@@ -1450,6 +1577,35 @@ public class FileBackend {
         }
     }
 
+    /**
+     * Like {@link #cropCenter(Uri, int, int)} but keeps small results of local files in the
+     * thumbnail disk cache so avatars do not have to be decoded from full size on every start.
+     */
+    public Bitmap cropAvatar(final Uri image, final int newHeight, final int newWidth) {
+        if (image == null
+                || !"file".equals(image.getScheme())
+                || image.getPath() == null
+                || Math.max(newHeight, newWidth) > Config.AVATAR_DISK_CACHE_MAX_SIZE) {
+            return cropCenter(image, newHeight, newWidth);
+        }
+        final String diskKey = ThumbnailDiskCache.key(new File(image.getPath()), "avatar_" + newWidth, newHeight);
+        if (diskKey == null) {
+            return cropCenter(image, newHeight, newWidth);
+        }
+        final Bitmap cached = getThumbnailDiskCache().get(diskKey);
+        if (cached != null) {
+            thumbnailDiskHits.incrementAndGet();
+            return cached;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        final Bitmap bitmap = cropCenter(image, newHeight, newWidth);
+        recordThumbnailDecode(start);
+        if (bitmap != null) {
+            getThumbnailDiskCache().put(diskKey, bitmap);
+        }
+        return bitmap;
+    }
+
     public Bitmap cropCenter(Uri image, int newHeight, int newWidth) {
         if (image == null) {
             return null;
@@ -1691,7 +1847,7 @@ public class FileBackend {
         if (avatar == null) {
             return null;
         }
-        Bitmap bm = cropCenter(getAvatarUri(avatar), size, size);
+        Bitmap bm = cropAvatar(getAvatarUri(avatar), size, size);
         return bm;
     }
 
@@ -0,0 +1,158 @@
+package eu.siacs.conversations.persistance;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.utils.CryptoHelper;
+
+/**
+ * Downscaled previews stored as files in the cache directory. Keys are derived from the path,
+ * size and modification time of the source file, so a changed or replaced file simply stops
+ * matching its old preview. Stale and rarely used previews are removed, least recently used
+ * first, once the directory grows beyond its budget.
+ */
+final class ThumbnailDiskCache {
+
+    private final File directory;
+    private final long maxBytes;
+    private long currentBytes = -1;
+
+    ThumbnailDiskCache(final File directory, final long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    static String key(final File source, final String variant, final int size) {
+        final long lastModified = source.lastModified();
+        if (lastModified == 0) {
+            return null;
+        }
+        final String input = source.getAbsolutePath() + '|' + lastModified + '|' + source.length() + '|' + variant + '|' + size;
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return CryptoHelper.bytesToHex(digest.digest(input.getBytes(Charsets.UTF_8)));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    Bitmap get(final String key) {
+        final File file = new File(directory, key);
+        if (!file.exists()) {
+            return null;
+        }
+        final Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        if (bitmap == null) {
+            remove(file);
+            return null;
+        }
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            Log.d(Config.LOGTAG, "unable to touch thumbnail " + key);
+        }
+        return bitmap;
+    }
+
+    void put(final String key, final Bitmap bitmap) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+        final File file = new File(directory, key);
+        final File temporary = new File(directory, key + ".tmp");
+        try (final FileOutputStream outputStream = new FileOutputStream(temporary)) {
+            final Bitmap.CompressFormat format = bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+            if (!bitmap.compress(format, 85, outputStream)) {
+                throw new IOException("unable to compress thumbnail");
+            }
+        } catch (final IOException e) {
+            Log.d(Config.LOGTAG, "unable to write thumbnail " + key, e);
+            remove(temporary);
+            return;
+        }
+        if (!temporary.renameTo(file)) {
+            remove(temporary);
+            return;
+        }
+        synchronized (this) {
+            if (currentBytes < 0) {
+                currentBytes = directorySize();
+            } else {
+                currentBytes += file.length();
+            }
+            if (currentBytes > maxBytes) {
+                trim();
+            }
+        }
+    }
+
+    private long directorySize() {
+        final File[] files = directory.listFiles();
+        long size = 0;
+        if (files != null) {
+            for (final File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private void trim() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            currentBytes = 0;
+            return;
+        }
+        // snapshot the modification times; get() may touch files while we sort
+        final List<Entry> entries = new ArrayList<>(files.length);
+        long size = 0;
+        for (final File file : files) {
+            final Entry entry = new Entry(file);
+            entries.add(entry);
+            size += entry.length;
+        }
+        Collections.sort(entries, (a, b) -> Long.compare(a.lastModified, b.lastModified));
+        final long target = maxBytes * 3 / 4;
+        int removed = 0;
+        for (final Entry entry : entries) {
+            if (size <= target) {
+                break;
+            }
+            if (entry.file.delete()) {
+                size -= entry.length;
+                ++removed;
+            }
+        }
+        currentBytes = size;
+        Log.d(Config.LOGTAG, "removed " + removed + " thumbnails from disk cache. " + size + " bytes remaining");
+    }
+
+    private static final class Entry {
+        private final File file;
+        private final long length;
+        private final long lastModified;
+
+        private Entry(final File file) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+    }
+
+    private static void remove(final File file) {
+        if (file.exists() && !file.delete()) {
+            Log.d(Config.LOGTAG, "unable to delete " + file.getAbsolutePath());
+        }
+    }
+}
@@ -29,11 +29,10 @@ import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
 import eu.siacs.conversations.entities.DownloadableFile;
 import eu.siacs.conversations.utils.Compatibility;
+import eu.siacs.conversations.utils.FileTransferPipeline;
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
 import okio.BufferedSink;
-import okio.Okio;
-import okio.Source;
 
 import static eu.siacs.conversations.entities.Transferable.VALID_CRYPTO_EXTENSIONS;
 
@@ -77,14 +76,14 @@ public class AbstractConnectionManager {
 
             @Override
             public void writeTo(final BufferedSink sink) throws IOException {
-                long transmitted = 0;
-                try (final Source source = Okio.source(upgrade(file, new FileInputStream(file)))) {
-                    long read;
-                    while ((read = source.read(sink.buffer(), 8196)) != -1) {
-                        transmitted += read;
-                        sink.flush();
-                        progressListener.onProgress(transmitted);
-                    }
+                // reading and encrypting happens on a second thread; okio sends full segments as
+                // they become available and the body is only flushed once at the end
+                try (final InputStream source = upgrade(file, new FileInputStream(file))) {
+                    FileTransferPipeline.upload(
+                            file.getKey() != null ? "uploaded (encrypted)" : "uploaded",
+                            source,
+                            sink.outputStream(),
+                            progressListener);
                 }
             }
         };
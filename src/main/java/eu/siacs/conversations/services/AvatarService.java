@@ -21,6 +21,7 @@ import androidx.annotation.ColorInt;
 import androidx.annotation.Nullable;
 import androidx.core.content.res.ResourcesCompat;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -39,6 +40,8 @@ import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.entities.MucOptions;
 import eu.siacs.conversations.entities.RawBlockable;
 import eu.siacs.conversations.entities.Room;
+import eu.siacs.conversations.utils.Cancellable;
+import eu.siacs.conversations.utils.ReplacingSerialSingleThreadExecutor;
 import eu.siacs.conversations.utils.UIHelper;
 import eu.siacs.conversations.xmpp.Jid;
 import eu.siacs.conversations.xmpp.OnAdvancedStreamFeaturesLoaded;
@@ -59,8 +62,19 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 
 	private static final String CHANNEL_SYMBOL = "#";
 
-	final private Set<Integer> sizes = new HashSet<>();
-	final private HashMap<String, Set<String>> conversationDependentKeys = new HashMap<>();
+	private static final Typeface TILE_TYPEFACE = Typeface.create("sans-serif-light", Typeface.NORMAL);
+
+	private static final ThreadLocal<TilePaints> TILE_PAINTS = new ThreadLocal<TilePaints>() {
+		@Override
+		protected TilePaints initialValue() {
+			return new TilePaints();
+		}
+	};
+
+	// cache keys grouped by the entity they depend on so they can be evicted without guessing sizes
+	final private HashMap<String, Set<String>> keysByOwner = new HashMap<>();
+
+	private final ReplacingSerialSingleThreadExecutor prefetchExecutor = new ReplacingSerialSingleThreadExecutor(AvatarService.class.getSimpleName());
 
 	protected XmppConnectionService mXmppConnectionService = null;
 
@@ -223,11 +237,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	}
 
 	public void clear(Contact contact) {
-		synchronized (this.sizes) {
-			for (final Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(contact, size));
-			}
-		}
+		invalidate(owner(contact));
 		for (Conversation conversation : mXmppConnectionService.findAllConferencesWith(contact)) {
 			MucOptions.User user = conversation.getMucOptions().findUserByRealJid(contact.getJid().asBareJid());
 			if (user != null) {
@@ -237,32 +247,30 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		}
 	}
 
-	private String key(Contact contact, int size) {
-		synchronized (this.sizes) {
-			this.sizes.add(size);
-		}
+	private static String owner(Contact contact) {
 		return PREFIX_CONTACT +
 				'\0' +
 				contact.getAccount().getJid().asBareJid() +
 				'\0' +
-				emptyOnNull(contact.getJid()) +
-				'\0' +
-				size;
+				emptyOnNull(contact.getJid());
 	}
 
-	private String key(MucOptions.User user, int size) {
-		synchronized (this.sizes) {
-			this.sizes.add(size);
-		}
+	private String key(Contact contact, int size) {
+		return register(owner(contact), size);
+	}
+
+	private static String owner(MucOptions.User user) {
 		return PREFIX_CONTACT +
 				'\0' +
 				user.getAccount().getJid().asBareJid() +
 				'\0' +
 				emptyOnNull(user.getFullJid()) +
 				'\0' +
-				emptyOnNull(user.getRealJid()) +
-				'\0' +
-				size;
+				emptyOnNull(user.getRealJid());
+	}
+
+	private String key(MucOptions.User user, int size) {
+		return register(owner(user), size);
 	}
 
 	public Bitmap get(ListItem item, int size) {
@@ -311,17 +319,6 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 			clear(conversation.getContact());
 		} else {
 			clear(conversation.getMucOptions());
-			synchronized (this.conversationDependentKeys) {
-				Set<String> keys = this.conversationDependentKeys.get(conversation.getUuid());
-				if (keys == null) {
-					return;
-				}
-				LruCache<String, Bitmap> cache = this.mXmppConnectionService.getBitmapCache();
-				for (String key : keys) {
-					cache.remove(key);
-				}
-				keys.clear();
-			}
 		}
 	}
 
@@ -398,22 +395,22 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		return bitmap;
 	}
 
+	/**
+	 * Evicts the avatar of the conversation as well as every tile composed for it.
+	 */
 	public void clear(final MucOptions options) {
 		if (options == null) {
 			return;
 		}
-		synchronized (this.sizes) {
-			for (Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(options, size));
-			}
-		}
+		invalidate(owner(options.getConversation()));
+	}
+
+	private static String owner(final Conversation conversation) {
+		return PREFIX_CONVERSATION + "_" + conversation.getUuid();
 	}
 
 	private String key(final MucOptions options, int size) {
-		synchronized (this.sizes) {
-			this.sizes.add(size);
-		}
-		return PREFIX_CONVERSATION + "_" + options.getConversation().getUuid() + "_" + size;
+		return register(owner(options.getConversation()), size);
 	}
 
 	private String key(List<MucOptions.User> users, int size) {
@@ -427,22 +424,48 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 			builder.append("\0");
 			builder.append(emptyOnNull(user.getFullJid()));
 		}
-		builder.append('\0');
-		builder.append(size);
-		final String key = builder.toString();
-		synchronized (this.conversationDependentKeys) {
-			Set<String> keys;
-			if (this.conversationDependentKeys.containsKey(conversation.getUuid())) {
-				keys = this.conversationDependentKeys.get(conversation.getUuid());
-			} else {
+		return register(owner(conversation), builder.toString(), size);
+	}
+
+	private String register(final String owner, final int size) {
+		return register(owner, owner, size);
+	}
+
+	private String register(final String owner, final String prefix, final int size) {
+		final String key = prefix + '\0' + size;
+		synchronized (this.keysByOwner) {
+			Set<String> keys = this.keysByOwner.get(owner);
+			if (keys == null) {
 				keys = new HashSet<>();
-				this.conversationDependentKeys.put(conversation.getUuid(), keys);
+				this.keysByOwner.put(owner, keys);
 			}
 			keys.add(key);
 		}
 		return key;
 	}
 
+	private void invalidate(final String owner) {
+		final Set<String> keys;
+		synchronized (this.keysByOwner) {
+			keys = this.keysByOwner.remove(owner);
+		}
+		if (keys == null) {
+			return;
+		}
+		final LruCache<String, Bitmap> cache = this.mXmppConnectionService.getBitmapCache();
+		for (final String key : keys) {
+			cache.remove(key);
+		}
+	}
+
+	/**
+	 * Renders the avatars of the given entities in the background so they are cached by the time
+	 * they are displayed. A new call replaces a prefetch that has not finished yet.
+	 */
+	public void prefetch(final List<? extends Avatarable> avatarables, final int size) {
+		prefetchExecutor.execute(new PrefetchTask(new ArrayList<>(avatarables), size));
+	}
+
 	public Bitmap get(Account account, int size) {
 		return get(account, size, false);
 	}
@@ -499,27 +522,19 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	}
 
 	public void clear(Account account) {
-		synchronized (this.sizes) {
-			for (Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(account, size));
-			}
-		}
+		invalidate(owner(account));
 	}
 
 	public void clear(MucOptions.User user) {
-		synchronized (this.sizes) {
-			for (Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(user, size));
-			}
-		}
+		invalidate(owner(user));
+	}
+
+	private static String owner(Account account) {
+		return PREFIX_ACCOUNT + "_" + account.getUuid();
 	}
 
 	private String key(Account account, int size) {
-		synchronized (this.sizes) {
-			this.sizes.add(size);
-		}
-		return PREFIX_ACCOUNT + "_" + account.getUuid() + "_"
-				+ size;
+		return register(owner(account), size);
 	}
 
 	/*public Bitmap get(String name, int size) {
@@ -549,29 +564,21 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		return bitmap;
 	}
 
-	private String key(String name, int size) {
-		synchronized (this.sizes) {
-			this.sizes.add(size);
-		}
+	private static String key(String name, int size) {
 		return PREFIX_GENERIC + "_" + name + "_" + size;
 	}
 
 	private static boolean drawTile(Canvas canvas, String letter, int tileColor, int left, int top, int right, int bottom) {
 		letter = letter.toUpperCase(Locale.getDefault());
-		Paint tilePaint = new Paint(), textPaint = new Paint();
-		tilePaint.setColor(tileColor);
-		textPaint.setFlags(Paint.ANTI_ALIAS_FLAG);
-		textPaint.setColor(FG_COLOR);
-		textPaint.setTypeface(Typeface.create("sans-serif-light",
-				Typeface.NORMAL));
-		textPaint.setTextSize((float) ((right - left) * 0.8));
-		Rect rect = new Rect();
-
-		canvas.drawRect(new Rect(left, top, right, bottom), tilePaint);
-		textPaint.getTextBounds(letter, 0, 1, rect);
-		float width = textPaint.measureText(letter);
+		final TilePaints paints = TILE_PAINTS.get();
+		paints.tile.setColor(tileColor);
+		paints.text.setTextSize((float) ((right - left) * 0.8));
+		paints.rect.set(left, top, right, bottom);
+		canvas.drawRect(paints.rect, paints.tile);
+		paints.text.getTextBounds(letter, 0, 1, paints.rect);
+		float width = paints.text.measureText(letter);
 		canvas.drawText(letter, (right + left) / 2 - width / 2, (top + bottom)
-				/ 2 + rect.height() / 2, textPaint);
+				/ 2 + paints.rect.height() / 2, paints.text);
 		return true;
 	}
 
@@ -641,7 +648,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	private boolean drawTile(Canvas canvas, Uri uri, int left, int top, int right, int bottom) {
 		if (uri != null) {
 			Bitmap bitmap = mXmppConnectionService.getFileBackend()
-					.cropCenter(uri, bottom - top, right - left);
+					.cropAvatar(uri, bottom - top, right - left);
 			if (bitmap != null) {
 				drawTile(canvas, bitmap, left, top, right, bottom);
 				return true;
@@ -651,7 +658,8 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	}
 
 	private boolean drawTile(Canvas canvas, Bitmap bm, int dstleft, int dsttop, int dstright, int dstbottom) {
-		Rect dst = new Rect(dstleft, dsttop, dstright, dstbottom);
+		final Rect dst = TILE_PAINTS.get().rect;
+		dst.set(dstleft, dsttop, dstright, dstbottom);
 		canvas.drawBitmap(bm, null, dst, null);
 		return true;
 	}
@@ -671,6 +679,47 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		return value == null ? "" : value.toString();
 	}
 
+	private static final class TilePaints {
+		private final Paint tile = new Paint();
+		private final Paint text = new Paint();
+		private final Rect rect = new Rect();
+
+		private TilePaints() {
+			text.setFlags(Paint.ANTI_ALIAS_FLAG);
+			text.setColor(FG_COLOR);
+			text.setTypeface(TILE_TYPEFACE);
+		}
+	}
+
+	private class PrefetchTask implements Runnable, Cancellable {
+
+		private final List<Avatarable> avatarables;
+		private final int size;
+		private volatile boolean cancelled = false;
+
+		private PrefetchTask(final List<Avatarable> avatarables, final int size) {
+			this.avatarables = avatarables;
+			this.size = size;
+		}
+
+		@Override
+		public void run() {
+			for (final Avatarable avatarable : avatarables) {
+				if (cancelled) {
+					return;
+				}
+				if (get(avatarable, size, true) == null) {
+					get(avatarable, size, false);
+				}
+			}
+		}
+
+		@Override
+		public void cancel() {
+			this.cancelled = true;
+		}
+	}
+
 	public interface Avatarable {
 		@ColorInt int getAvatarBackgroundColor();
 		String getAvatarName();
@@ -0,0 +1,116 @@
+package eu.siacs.conversations.services;
+
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.xmpp.Jid;
+
+/**
+ * Maps (account, bare jid) to the open conversation with that contact or room. Reads are lock
+ * free; writes are expected to happen while holding the lock on the conversation list so the
+ * index and the list change together. The index is authoritative: a miss means there is no open
+ * conversation, no linear scan follows.
+ */
+final class ConversationLookupIndex {
+
+    private final ConcurrentHashMap<Account, ConcurrentHashMap<Jid, Conversation>> index = new ConcurrentHashMap<>();
+
+    private final AtomicLong lookups = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong stale = new AtomicLong(0);
+    private volatile long windowStart = SystemClock.elapsedRealtime();
+    private volatile long windowLookups = 0;
+
+    Conversation find(final Account account, final Jid jid) {
+        lookups.incrementAndGet();
+        final Map<Jid, Conversation> conversations = index.get(account);
+        if (conversations == null) {
+            return null;
+        }
+        final Conversation conversation = conversations.get(jid.isBareJid() ? jid : jid.asBareJid());
+        if (conversation == null) {
+            return null;
+        }
+        if (conversation.getAccount() != account) {
+            // setAccount() was called after the conversation got indexed
+            stale.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return conversation;
+    }
+
+    void add(final Conversation conversation) {
+        final Account account = conversation.getAccount();
+        ConcurrentHashMap<Jid, Conversation> conversations = index.get(account);
+        if (conversations == null) {
+            conversations = new ConcurrentHashMap<>();
+            index.put(account, conversations);
+        }
+        conversations.put(conversation.getJid().asBareJid(), conversation);
+    }
+
+    boolean remove(final Conversation conversation) {
+        final Map<Jid, Conversation> conversations = index.get(conversation.getAccount());
+        if (conversations == null) {
+            return false;
+        }
+        boolean removed = false;
+        final Iterator<Conversation> iterator = conversations.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == conversation) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Re-keys a conversation after its jid was changed. Conversations are few per account so we
+     * simply look for the old entry by identity. Conversations that are not indexed stay that way.
+     */
+    void update(final Conversation conversation) {
+        if (remove(conversation)) {
+            add(conversation);
+        }
+    }
+
+    void remove(final Account account) {
+        index.remove(account);
+    }
+
+    void rebuild(final Iterable<Conversation> conversations) {
+        index.clear();
+        for (final Conversation conversation : conversations) {
+            add(conversation);
+        }
+    }
+
+    /**
+     * Returns counters and the lookup rate since the previous call.
+     */
+    String getStatistics() {
+        final long now = SystemClock.elapsedRealtime();
+        final long total = lookups.get();
+        final long elapsed = Math.max(1, now - windowStart);
+        final double rate = (total - windowLookups) * 1000.0 / elapsed;
+        windowStart = now;
+        windowLookups = total;
+        return String.format(
+                Locale.US,
+                "lookups=%d, hits=%d, misses=%d, stale=%d, lookups/sec=%.1f",
+                total,
+                hits.get(),
+                total - hits.get() - stale.get(),
+                stale.get(),
+                rate);
+    }
+}
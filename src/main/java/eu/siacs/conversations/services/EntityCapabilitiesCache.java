@@ -0,0 +1,176 @@
+package eu.siacs.conversations.services;
+
+import android.util.LruCache;
+import android.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Contact;
+import eu.siacs.conversations.entities.Presence;
+import eu.siacs.conversations.entities.ServiceDiscoveryResult;
+import eu.siacs.conversations.persistance.DatabaseBackend;
+import eu.siacs.conversations.xmpp.Jid;
+
+/**
+ * Entity capabilities keyed by (hash, ver). Results are looked up in memory first and then in the
+ * discovery_results table. The memory cache grows with the number of distinct caps versions seen
+ * in this session, between {@link Config#CAPS_CACHE_MIN_SIZE} and {@link
+ * Config#CAPS_CACHE_MAX_SIZE}.
+ *
+ * <p>Presences whose caps are unknown are parked on their key until a result arrives. Only the
+ * first of them causes a disco#info request. If that request fails, the next entity that
+ * announced the same caps is asked instead.
+ */
+final class EntityCapabilitiesCache {
+
+    private final DatabaseBackend databaseBackend;
+    private final LruCache<Pair<String, String>, ServiceDiscoveryResult> memory = new LruCache<>(Config.CAPS_CACHE_MIN_SIZE);
+    private final Set<Pair<String, String>> seen = new HashSet<>();
+    private final Map<Pair<String, String>, PendingRequest> pending = new HashMap<>();
+
+    private long memoryHits = 0;
+    private long databaseHits = 0;
+    private long requests = 0;
+    private long shared = 0;
+    private long failures = 0;
+
+    EntityCapabilitiesCache(final DatabaseBackend databaseBackend) {
+        this.databaseBackend = databaseBackend;
+    }
+
+    ServiceDiscoveryResult get(final Pair<String, String> key) {
+        synchronized (this) {
+            final ServiceDiscoveryResult result = memory.get(key);
+            if (result != null) {
+                ++memoryHits;
+                return result;
+            }
+            if (pending.containsKey(key)) {
+                return null;
+            }
+            if (seen.add(key)) {
+                final int size = Math.min(Config.CAPS_CACHE_MAX_SIZE, seen.size() + seen.size() / 4);
+                if (size > memory.maxSize()) {
+                    memory.resize(size);
+                }
+            }
+        }
+        final ServiceDiscoveryResult result = databaseBackend.findDiscoveryResult(key.first, key.second);
+        if (result != null) {
+            synchronized (this) {
+                ++databaseHits;
+                memory.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parks a presence until the caps for its key are known. Returns true if the caller should
+     * send a disco#info request to the given entity; false if one is already on its way.
+     */
+    synchronized boolean await(final Pair<String, String> key, final Account account, final Jid jid, final String node, final Contact contact, final Presence presence) {
+        final Waiter waiter = new Waiter(account, jid, node, contact, presence);
+        final PendingRequest request = pending.get(key);
+        if (request != null) {
+            ++shared;
+            request.waiters.add(waiter);
+            return false;
+        }
+        ++requests;
+        final PendingRequest created = new PendingRequest();
+        created.waiters.add(waiter);
+        created.asked.add(jid);
+        pending.put(key, created);
+        return true;
+    }
+
+    /**
+     * Stores the result and returns every presence that was waiting for it.
+     */
+    synchronized List<Waiter> complete(final Pair<String, String> key, final ServiceDiscoveryResult result) {
+        memory.put(key, result);
+        final PendingRequest request = pending.remove(key);
+        return request == null ? Collections.emptyList() : request.waiters;
+    }
+
+    /**
+     * Picks the next entity to ask after a failed request. Returns null, and forgets about the
+     * waiting presences, once there is nobody left to ask.
+     */
+    synchronized Waiter retry(final Pair<String, String> key) {
+        ++failures;
+        final PendingRequest request = pending.get(key);
+        if (request == null) {
+            return null;
+        }
+        if (request.asked.size() < Config.CAPS_MAX_REQUEST_ATTEMPTS) {
+            for (final Waiter waiter : request.waiters) {
+                if (request.asked.add(waiter.jid)) {
+                    ++requests;
+                    return waiter;
+                }
+            }
+        }
+        pending.remove(key);
+        return null;
+    }
+
+    void preload(final int limit) {
+        final List<ServiceDiscoveryResult> results = databaseBackend.getRecentDiscoveryResults(limit);
+        synchronized (this) {
+            if (results.size() > memory.maxSize()) {
+                memory.resize(Math.min(Config.CAPS_CACHE_MAX_SIZE, results.size()));
+            }
+            // oldest first so the most recent results end up as the most recently used entries
+            for (int i = results.size() - 1; i >= 0; --i) {
+                final ServiceDiscoveryResult result = results.get(i);
+                memory.put(new Pair<>(result.getHash(), result.getVer()), result);
+            }
+        }
+    }
+
+    synchronized String getStatistics() {
+        return String.format(
+                Locale.US,
+                "memory hits=%d, database hits=%d, requests=%d, shared=%d, failures=%d, in flight=%d, cached=%d/%d",
+                memoryHits,
+                databaseHits,
+                requests,
+                shared,
+                failures,
+                pending.size(),
+                memory.size(),
+                memory.maxSize());
+    }
+
+    static final class Waiter {
+        final Account account;
+        final Jid jid;
+        final String node;
+        final Contact contact;
+        final Presence presence;
+
+        private Waiter(final Account account, final Jid jid, final String node, final Contact contact, final Presence presence) {
+            this.account = account;
+            this.jid = jid;
+            this.node = node;
+            this.contact = contact;
+            this.presence = presence;
+        }
+    }
+
+    private static final class PendingRequest {
+        private final List<Waiter> waiters = new ArrayList<>();
+        private final Set<Jid> asked = new HashSet<>();
+    }
+}
@@ -9,21 +9,21 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
-import com.google.common.base.CharMatcher;
 import com.google.common.base.Strings;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
@@ -31,15 +31,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.zip.GZIPOutputStream;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -50,18 +46,15 @@ import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.utils.BackupFileHeader;
+import eu.siacs.conversations.utils.ChunkedBackup;
 import eu.siacs.conversations.utils.Compatibility;
+import eu.siacs.conversations.utils.CursorUtils;
 
 public class ExportBackupService extends Service {
 
-    public static final String KEYTYPE = "AES";
-    public static final String CIPHERMODE = "AES/GCM/NoPadding";
-    public static final String PROVIDER = "BC";
-
     public static final String MIME_TYPE = "application/vnd.conversations.backup";
 
     private static final int NOTIFICATION_ID = 19;
-    private static final int PAGE_SIZE = 20;
     private static final AtomicBoolean RUNNING = new AtomicBoolean(false);
     private DatabaseBackend mDatabaseBackend;
     private List<Account> mAccounts;
@@ -91,56 +84,27 @@ public class ExportBackupService extends Service {
         return Arrays.asList(openIntent, amazeIntent, systemFallBack);
     }
 
-    private static void accountExport(final SQLiteDatabase db, final String uuid, final PrintWriter writer) {
-        final StringBuilder builder = new StringBuilder();
-        final Cursor accountCursor = db.query(Account.TABLENAME, null, Account.UUID + "=?", new String[]{uuid}, null, null, null);
-        while (accountCursor != null && accountCursor.moveToNext()) {
-            builder.append("INSERT INTO ").append(Account.TABLENAME).append("(");
-            for (int i = 0; i < accountCursor.getColumnCount(); ++i) {
-                if (i != 0) {
-                    builder.append(',');
-                }
-                builder.append(accountCursor.getColumnName(i));
-            }
-            builder.append(") VALUES(");
-            for (int i = 0; i < accountCursor.getColumnCount(); ++i) {
-                if (i != 0) {
-                    builder.append(',');
-                }
-                final String value = accountCursor.getString(i);
-                if (value == null || Account.ROSTERVERSION.equals(accountCursor.getColumnName(i))) {
-                    builder.append("NULL");
-                } else if (value.matches("\\d+")) {
-                    int intValue = Integer.parseInt(value);
-                    if (Account.OPTIONS.equals(accountCursor.getColumnName(i))) {
-                        intValue |= 1 << Account.OPTION_DISABLED;
+    private static void accountExport(final SQLiteDatabase db, final String uuid, final ChunkedBackup.Writer writer) throws IOException {
+        try (final Cursor cursor = db.query(Account.TABLENAME, null, Account.UUID + "=?", new String[]{uuid}, null, null, null)) {
+            final String[] columns = cursor.getColumnNames();
+            writer.beginTable(Account.TABLENAME, columns);
+            while (cursor.moveToNext()) {
+                final Object[] values = readRow(cursor, -1);
+                for (int i = 0; i < columns.length; ++i) {
+                    if (Account.ROSTERVERSION.equals(columns[i])) {
+                        values[i] = null;
+                    } else if (Account.OPTIONS.equals(columns[i]) && values[i] instanceof Long) {
+                        values[i] = (Long) values[i] | 1 << Account.OPTION_DISABLED;
                     }
-                    builder.append(intValue);
-                } else {
-                    appendEscapedSQLString(builder, value);
                 }
+                writer.writeRow(values);
             }
-            builder.append(")");
-            builder.append(';');
-            builder.append('\n');
         }
-        if (accountCursor != null) {
-            accountCursor.close();
-        }
-        writer.append(builder.toString());
-    }
-
-    private static void appendEscapedSQLString(final StringBuilder sb, final String sqlString) {
-        DatabaseUtils.appendEscapedSQLString(sb, CharMatcher.is('\u0000').removeFrom(sqlString));
     }
 
-    private static void simpleExport(SQLiteDatabase db, String table, String column, String uuid, PrintWriter writer) {
-        final Cursor cursor = db.query(table, null, column + "=?", new String[]{uuid}, null, null, null);
-        while (cursor != null && cursor.moveToNext()) {
-            writer.write(cursorToString(table, cursor, PAGE_SIZE));
-        }
-        if (cursor != null) {
-            cursor.close();
+    private static void simpleExport(SQLiteDatabase db, String table, String column, String uuid, ChunkedBackup.Writer writer) throws IOException {
+        try (final Cursor cursor = db.query(table, null, column + "=?", new String[]{uuid}, null, null, null)) {
+            cursorExport(table, cursor, writer, null);
         }
     }
 
@@ -154,65 +118,52 @@ public class ExportBackupService extends Service {
         return factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, 1024, 128)).getEncoded();
     }
 
-    private static String cursorToString(final String table, final Cursor cursor, final int max) {
-        return cursorToString(table, cursor, max, false);
-    }
-
-    private static String cursorToString(final String table, final Cursor cursor, int max, boolean ignore) {
+    private static void cursorExport(final String table, final Cursor cursor, final ChunkedBackup.Writer writer, final Progress progress) throws IOException {
         final boolean identities = SQLiteAxolotlStore.IDENTITIES_TABLENAME.equals(table);
-        StringBuilder builder = new StringBuilder();
-        builder.append("INSERT ");
-        if (ignore) {
-            builder.append("OR IGNORE ");
+        final int skipColumn = identities ? cursor.getColumnIndex(SQLiteAxolotlStore.TRUSTED) : -1;
+        final List<String> columns = new ArrayList<>(Arrays.asList(cursor.getColumnNames()));
+        if (skipColumn >= 0) {
+            columns.remove(skipColumn);
         }
-        builder.append("INTO ").append(table).append("(");
-        int skipColumn = -1;
-        for (int i = 0; i < cursor.getColumnCount(); ++i) {
-            final String name = cursor.getColumnName(i);
-            if (identities && SQLiteAxolotlStore.TRUSTED.equals(name)) {
-                skipColumn = i;
-                continue;
-            }
-            if (i != 0) {
-                builder.append(',');
-            }
-            builder.append(name);
-        }
-        builder.append(") VALUES");
-        for (int i = 0; i < max; ++i) {
-            if (i != 0) {
-                builder.append(',');
-            }
-            appendValues(cursor, builder, skipColumn);
-            if (i < max - 1 && !cursor.moveToNext()) {
-                break;
+        writer.beginTable(table, columns.toArray(new String[0]));
+        final int size = cursor.getCount();
+        int i = 0;
+        while (cursor.moveToNext()) {
+            writer.writeRow(readRow(cursor, skipColumn));
+            if (progress != null) {
+                progress.update(++i, size);
             }
         }
-        builder.append(';');
-        builder.append('\n');
-        return builder.toString();
     }
 
-    private static void appendValues(final Cursor cursor, final StringBuilder builder, final int skipColumn) {
-        builder.append("(");
-        for (int i = 0; i < cursor.getColumnCount(); ++i) {
+    private static Object[] readRow(final Cursor cursor, final int skipColumn) {
+        final int count = cursor.getColumnCount();
+        final Object[] values = new Object[skipColumn >= 0 ? count - 1 : count];
+        int index = 0;
+        for (int i = 0; i < count; ++i) {
             if (i == skipColumn) {
                 continue;
             }
-            if (i != 0) {
-                builder.append(',');
-            }
-            final String value = cursor.getString(i);
-            if (value == null) {
-                builder.append("NULL");
-            } else if (value.matches("[0-9]+")) {
-                builder.append(value);
-            } else {
-                appendEscapedSQLString(builder, value);
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    values[index] = null;
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    values[index] = cursor.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    values[index] = cursor.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    values[index] = cursor.getBlob(i);
+                    break;
+                default:
+                    values[index] = cursor.getString(i);
+                    break;
             }
+            ++index;
         }
-        builder.append(")");
-
+        return values;
     }
 
     @Override
@@ -250,27 +201,11 @@ public class ExportBackupService extends Service {
         return START_NOT_STICKY;
     }
 
-    private void messageExport(SQLiteDatabase db, String uuid, PrintWriter writer, Progress progress) {
-        Cursor cursor = db.rawQuery("select messages.* from messages join conversations on conversations.uuid=messages.conversationUuid where conversations.accountUuid=?", new String[]{uuid});
-        int size = cursor != null ? cursor.getCount() : 0;
-        Log.d(Config.LOGTAG, "exporting " + size + " messages for account " + uuid);
-        int i = 0;
-        int p = 0;
-        while (cursor != null && cursor.moveToNext()) {
-            writer.write(cursorToString(Message.TABLENAME, cursor, PAGE_SIZE, false));
-            if (i + PAGE_SIZE > size) {
-                i = size;
-            } else {
-                i += PAGE_SIZE;
-            }
-            final int percentage = i * 100 / size;
-            if (p < percentage) {
-                p = percentage;
-                notificationManager.notify(NOTIFICATION_ID, progress.build(p));
-            }
-        }
-        if (cursor != null) {
-            cursor.close();
+    private void messageExport(SQLiteDatabase db, String uuid, ChunkedBackup.Writer writer, Progress progress) throws IOException {
+        try (final Cursor cursor = db.rawQuery("select messages.* from messages join conversations on conversations.uuid=messages.conversationUuid where conversations.accountUuid=?", new String[]{uuid})) {
+            Log.d(Config.LOGTAG, "exporting " + cursor.getCount() + " messages for account " + uuid);
+            CursorUtils.upgradeCursorWindowSize(cursor);
+            cursorExport(Message.TABLENAME, cursor, writer, progress);
         }
     }
 
@@ -297,7 +232,7 @@ public class ExportBackupService extends Service {
             secureRandom.nextBytes(IV);
             secureRandom.nextBytes(salt);
             final BackupFileHeader backupFileHeader = new BackupFileHeader(getString(R.string.app_name), account.getJid(), System.currentTimeMillis(), IV, salt);
-            final Progress progress = new Progress(mBuilder, max, count);
+            final Progress progress = new Progress(notificationManager, mBuilder, max, count);
             final File file = new File(FileBackend.getBackupDirectory(this), account.getJid().asBareJid().toEscapedString() + ".ceb");
             files.add(file);
             final File directory = file.getParentFile();
@@ -309,27 +244,33 @@ public class ExportBackupService extends Service {
             backupFileHeader.write(dataOutputStream);
             dataOutputStream.flush();
 
-            final Cipher cipher = Compatibility.twentyEight() ? Cipher.getInstance(CIPHERMODE) : Cipher.getInstance(CIPHERMODE, PROVIDER);
             final byte[] key = getKey(password, salt);
-            SecretKeySpec keySpec = new SecretKeySpec(key, KEYTYPE);
-            IvParameterSpec ivSpec = new IvParameterSpec(IV);
-            cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-            CipherOutputStream cipherOutputStream = new CipherOutputStream(fileOutputStream, cipher);
-
-            GZIPOutputStream gzipOutputStream = new GZIPOutputStream(cipherOutputStream);
-            PrintWriter writer = new PrintWriter(gzipOutputStream);
-            SQLiteDatabase db = this.mDatabaseBackend.getReadableDatabase();
-            final String uuid = account.getUuid();
-            accountExport(db, uuid, writer);
-            simpleExport(db, Conversation.TABLENAME, Conversation.ACCOUNT, uuid, writer);
-            messageExport(db, uuid, writer, progress);
-            for (String table : Arrays.asList(SQLiteAxolotlStore.PREKEY_TABLENAME, SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME, SQLiteAxolotlStore.SESSION_TABLENAME, SQLiteAxolotlStore.IDENTITIES_TABLENAME)) {
-                simpleExport(db, table, SQLiteAxolotlStore.ACCOUNT, uuid, writer);
+            final long start = SystemClock.elapsedRealtime();
+            final ChunkedBackup.Writer writer = new ChunkedBackup.Writer(new BufferedOutputStream(fileOutputStream), key, IV);
+            boolean finished = false;
+            try {
+                SQLiteDatabase db = this.mDatabaseBackend.getReadableDatabase();
+                final String uuid = account.getUuid();
+                accountExport(db, uuid, writer);
+                simpleExport(db, Conversation.TABLENAME, Conversation.ACCOUNT, uuid, writer);
+                messageExport(db, uuid, writer, progress);
+                for (String table : Arrays.asList(SQLiteAxolotlStore.PREKEY_TABLENAME, SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME, SQLiteAxolotlStore.SESSION_TABLENAME, SQLiteAxolotlStore.IDENTITIES_TABLENAME)) {
+                    simpleExport(db, table, SQLiteAxolotlStore.ACCOUNT, uuid, writer);
+                }
+                writer.finish();
+                finished = true;
+            } finally {
+                try {
+                    writer.close();
+                } finally {
+                    if (!finished && file.delete()) {
+                        Log.d(Config.LOGTAG, "deleted incomplete backup " + file.getAbsolutePath());
+                    }
+                }
             }
-            writer.flush();
-            writer.close();
+            final long duration = Math.max(1, SystemClock.elapsedRealtime() - start);
             mediaScannerScanFile(file);
-            Log.d(Config.LOGTAG, "written backup to " + file.getAbsoluteFile());
+            Log.d(Config.LOGTAG, String.format(Locale.US, "written backup to %s. %d bytes of rows in %dms (%.1f MB/s)", file.getAbsoluteFile(), writer.getPayloadBytes(), duration, writer.getPayloadBytes() / 1024.0 / 1024.0 / (duration / 1000.0)));
             count++;
         }
         return files;
@@ -392,16 +333,27 @@ public class ExportBackupService extends Service {
     }
 
     private static class Progress {
+        private final NotificationManager notificationManager;
         private final NotificationCompat.Builder builder;
         private final int max;
         private final int count;
+        private int percentage = 0;
 
-        private Progress(NotificationCompat.Builder builder, int max, int count) {
+        private Progress(NotificationManager notificationManager, NotificationCompat.Builder builder, int max, int count) {
+            this.notificationManager = notificationManager;
             this.builder = builder;
             this.max = max;
             this.count = count;
         }
 
+        private void update(int current, int total) {
+            final int percentage = total == 0 ? 100 : current * 100 / total;
+            if (percentage > this.percentage) {
+                this.percentage = percentage;
+                notificationManager.notify(NOTIFICATION_ID, build(percentage));
+            }
+        }
+
         private Notification build(int percentage) {
             builder.setProgress(max * 100, count * 100 + percentage, false);
             return builder.build();
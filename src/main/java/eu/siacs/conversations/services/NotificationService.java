@@ -47,9 +47,11 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executors;
@@ -105,6 +107,14 @@ public class NotificationService {
     private static final int DELIVERY_FAILED_NOTIFICATION_ID = NOTIFICATION_ID_MULTIPLIER * 13;
     private final XmppConnectionService mXmppConnectionService;
     private final LinkedHashMap<String, ArrayList<Message>> notifications = new LinkedHashMap<>();
+    // conversations whose child notification no longer matches what was posted. guarded by notifications
+    private final Set<String> staleConversations = new HashSet<>();
+    private final HashMap<String, Long> lastPostByChannel = new HashMap<>();
+    private ScheduledFuture<?> deferredUpdate;
+    private long summaryBuilds = 0;
+    private long childBuilds = 0;
+    private long childrenSkipped = 0;
+    private long updatesDeferred = 0;
     private final HashMap<Conversation, AtomicInteger> mBacklogMessageCounter = new HashMap<>();
     private final LinkedHashMap<Conversational, MissedCallsInfo> mMissedCalls =
             new LinkedHashMap<>();
@@ -432,6 +442,7 @@ public class NotificationService {
             mList.add(message);
             notifications.put(conversationUuid, mList);
         }
+        staleConversations.add(conversationUuid);
     }
 
     public void push(final Message message) {
@@ -755,6 +766,7 @@ public class NotificationService {
                 markAsReadIfHasDirectReply(messages);
             }
             notifications.clear();
+            staleConversations.clear();
             updateNotification(false);
         }
     }
@@ -766,6 +778,7 @@ public class NotificationService {
         synchronized (notifications) {
             markAsReadIfHasDirectReply(conversation);
             if (notifications.remove(conversation.getUuid()) != null) {
+                staleConversations.remove(conversation.getUuid());
                 cancel(conversation.getUuid(), NOTIFICATION_ID);
                 updateNotification(false, null, true);
             }
@@ -814,10 +827,24 @@ public class NotificationService {
 
     public void updateNotification() {
         synchronized (notifications) {
+            staleConversations.addAll(notifications.keySet());
             updateNotification(false);
         }
     }
 
+    /**
+     * Refreshes the notification of a single conversation, for example after one of its messages
+     * has been corrected. The other conversations are not rebuilt.
+     */
+    public void updateNotification(final Conversational conversation) {
+        synchronized (notifications) {
+            if (notifications.containsKey(conversation.getUuid())) {
+                staleConversations.add(conversation.getUuid());
+                updateNotification(false);
+            }
+        }
+    }
+
     private void updateNotification(final boolean notify) {
         updateNotification(notify, null, false);
     }
@@ -841,8 +868,15 @@ public class NotificationService {
         // create one notification per conversation
 
         if (notifications.size() == 0) {
+            cancelDeferredUpdate();
             cancel(NOTIFICATION_ID);
         } else {
+            final String channel = quiteHours ? "quiet_hours" : (notify ? "messages" : "silent_messages");
+            if (!notify && deferUpdate(channel)) {
+                return;
+            }
+            cancelDeferredUpdate();
+            lastPostByChannel.put(channel, SystemClock.elapsedRealtime());
             if (notify) {
                 this.markLastNotification();
             }
@@ -852,6 +886,7 @@ public class NotificationService {
                         buildSingleConversations(
                                 notifications.values().iterator().next(), notify, quiteHours);
                 modifyForSoundVibrationAndLight(mBuilder, notify, quiteHours, preferences);
+                ++summaryBuilds;
                 notify(NOTIFICATION_ID, mBuilder.build());
             } else {
                 mBuilder = buildMultipleConversation(notify, quiteHours);
@@ -862,6 +897,11 @@ public class NotificationService {
                 if (!summaryOnly) {
                     for (Map.Entry<String, ArrayList<Message>> entry : notifications.entrySet()) {
                         String uuid = entry.getKey();
+                        if (!staleConversations.remove(uuid)) {
+                            // unchanged children keep the notification that is already posted
+                            ++childrenSkipped;
+                            continue;
+                        }
                         final boolean notifyThis =
                                 notifyOnlyOneChild ? conversations.contains(uuid) : notify;
                         Builder singleBuilder =
@@ -874,14 +914,67 @@ public class NotificationService {
                                 singleBuilder, notifyThis, quiteHours, preferences);
                         singleBuilder.setGroup(MESSAGES_GROUP);
                         setNotificationColor(singleBuilder);
+                        ++childBuilds;
                         notify(entry.getKey(), NOTIFICATION_ID, singleBuilder.build());
                     }
                 }
+                ++summaryBuilds;
                 notify(NOTIFICATION_ID, mBuilder.build());
             }
         }
     }
 
+    /**
+     * Silent updates that follow the previous post on the same channel within {@link
+     * Config#NOTIFICATION_UPDATE_INTERVAL} are folded into a single update at the end of that
+     * interval. Stale children stay marked until then, so nothing is lost.
+     */
+    private boolean deferUpdate(final String channel) {
+        final Long lastPost = lastPostByChannel.get(channel);
+        if (lastPost == null) {
+            return false;
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - lastPost;
+        if (elapsed >= Config.NOTIFICATION_UPDATE_INTERVAL) {
+            return false;
+        }
+        ++updatesDeferred;
+        if (deferredUpdate == null) {
+            deferredUpdate =
+                    SCHEDULED_EXECUTOR_SERVICE.schedule(
+                            this::runDeferredUpdate,
+                            Config.NOTIFICATION_UPDATE_INTERVAL - elapsed,
+                            TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    private void runDeferredUpdate() {
+        synchronized (notifications) {
+            deferredUpdate = null;
+            updateNotification(false);
+        }
+    }
+
+    private void cancelDeferredUpdate() {
+        if (deferredUpdate != null) {
+            deferredUpdate.cancel(false);
+            deferredUpdate = null;
+        }
+    }
+
+    String getStatistics() {
+        synchronized (notifications) {
+            return String.format(
+                    Locale.US,
+                    "summary builds=%d, child builds=%d, children skipped=%d, updates deferred=%d",
+                    summaryBuilds,
+                    childBuilds,
+                    childrenSkipped,
+                    updatesDeferred);
+        }
+    }
+
     private void updateMissedCallNotifications(final Set<Conversational> update) {
         if (mMissedCalls.isEmpty()) {
             cancel(MISSED_CALL_NOTIFICATION_ID);
@@ -0,0 +1,106 @@
+package eu.siacs.conversations.services;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Coalesces requests to notify UI listeners. A request marks its category dirty; dirty categories
+ * are delivered together at most once per interval on a dedicated thread. The first request after
+ * a quiet period is delivered right away, further requests within the interval are folded into a
+ * single delivery at the end of it. Listeners always pull the current state from the service so
+ * skipping intermediate updates does not lose information.
+ */
+final class UiUpdateDispatcher {
+
+    enum Category {
+        CONVERSATION,
+        ACCOUNT,
+        ROSTER,
+        MUC_ROSTER
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "ui-updates"));
+    private final EnumMap<Category, Runnable> deliveries = new EnumMap<>(Category.class);
+    private final EnumSet<Category> dirty = EnumSet.noneOf(Category.class);
+    private final long interval;
+    private boolean scheduled = false;
+    private long lastDelivery = 0;
+
+    private final AtomicLongArray requested = new AtomicLongArray(Category.values().length);
+    private final AtomicLongArray delivered = new AtomicLongArray(Category.values().length);
+
+    UiUpdateDispatcher(final long interval) {
+        this.interval = interval;
+    }
+
+    void setDelivery(final Category category, final Runnable runnable) {
+        deliveries.put(category, runnable);
+    }
+
+    void request(final Category category) {
+        requested.incrementAndGet(category.ordinal());
+        synchronized (dirty) {
+            dirty.add(category);
+            if (scheduled) {
+                return;
+            }
+            final long delay = Math.max(0, lastDelivery + interval - SystemClock.elapsedRealtime());
+            try {
+                executor.schedule(this::deliver, delay, TimeUnit.MILLISECONDS);
+                scheduled = true;
+            } catch (final RejectedExecutionException e) {
+                Log.d(Config.LOGTAG, "dropping ui update request after shutdown");
+            }
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void deliver() {
+        final EnumSet<Category> categories;
+        synchronized (dirty) {
+            categories = EnumSet.copyOf(dirty);
+            dirty.clear();
+            scheduled = false;
+            lastDelivery = SystemClock.elapsedRealtime();
+        }
+        for (final Category category : categories) {
+            delivered.incrementAndGet(category.ordinal());
+            // an exception would otherwise end up unseen in the ScheduledFuture
+            try {
+                deliveries.get(category).run();
+            } catch (final RuntimeException e) {
+                Log.e(Config.LOGTAG, "ui listener failed to handle " + category + " update", e);
+            }
+        }
+    }
+
+    String getStatistics() {
+        final StringBuilder builder = new StringBuilder();
+        for (final Category category : Category.values()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(String.format(
+                    Locale.US,
+                    "%s=%d/%d",
+                    category.name().toLowerCase(Locale.US),
+                    delivered.get(category.ordinal()),
+                    requested.get(category.ordinal())));
+        }
+        return builder.append(" (delivered/requested)").toString();
+    }
+}
@@ -0,0 +1,96 @@
+package eu.siacs.conversations.services;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Turns the wake-up deadlines of all accounts into a single alarm. Every wake-up processes all
+ * accounts anyway, so an alarm that goes off up to {@link Config#WAKE_UP_ALIGNMENT} seconds before
+ * a deadline serves that deadline as well; pings and reconnects that are due within that window
+ * are brought forward. Times are in {@link android.os.SystemClock#elapsedRealtime()} milliseconds
+ * and passed in by the caller.
+ */
+public class WakeUpScheduler {
+
+    private static final long TOLERANCE = Config.WAKE_UP_ALIGNMENT * 1000L;
+
+    private final Alarm alarmManager;
+    private final Map<String, Long> deadlines = new HashMap<>();
+    private long alarm = Long.MAX_VALUE;
+    private long requests = 0;
+    private long alarms = 0;
+    private long wakeUps = 0;
+    private long served = 0;
+
+    /**
+     * @param alarmManager sets the one shared alarm. It is called while holding the scheduler's
+     *     lock so that the alarm is always set in the same order the scheduler decided on.
+     */
+    public WakeUpScheduler(final Alarm alarmManager) {
+        this.alarmManager = alarmManager;
+    }
+
+    /** Records the next deadline of an account, replacing the previous one. */
+    public synchronized void schedule(final String account, final long deadline) {
+        ++requests;
+        deadlines.put(account, deadline);
+        rearm();
+    }
+
+    /** Forgets every deadline the wake-up at {@code now} takes care of. */
+    public synchronized void onWakeUp(final long now) {
+        ++wakeUps;
+        int due = 0;
+        final Iterator<Long> iterator = deadlines.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() <= now + TOLERANCE) {
+                iterator.remove();
+                ++due;
+            }
+        }
+        served += due;
+        alarm = Long.MAX_VALUE;
+        rearm();
+    }
+
+    private void rearm() {
+        long earliest = Long.MAX_VALUE;
+        for (final long deadline : deadlines.values()) {
+            earliest = Math.min(earliest, deadline);
+        }
+        if (earliest == Long.MAX_VALUE || (alarm <= earliest && earliest - alarm <= TOLERANCE)) {
+            return;
+        }
+        ++alarms;
+        alarm = earliest;
+        alarmManager.set(earliest);
+    }
+
+    public synchronized String getStatistics(final long now) {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(
+                String.format(
+                        Locale.US,
+                        "requests=%d, alarms=%d, wake-ups=%d, deadlines served=%d",
+                        requests,
+                        alarms,
+                        wakeUps,
+                        served));
+        for (final Map.Entry<String, Long> entry : deadlines.entrySet()) {
+            builder.append(", ")
+                    .append(entry.getKey())
+                    .append(" in ")
+                    .append((entry.getValue() - now) / 1000)
+                    .append('s');
+        }
+        return builder.toString();
+    }
+
+    public interface Alarm {
+        void set(long timeToWake);
+    }
+}
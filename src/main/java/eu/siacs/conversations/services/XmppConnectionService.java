@@ -74,15 +74,18 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -107,7 +110,6 @@ import eu.siacs.conversations.entities.MucOptions;
 import eu.siacs.conversations.entities.MucOptions.OnRenameListener;
 import eu.siacs.conversations.entities.Presence;
 import eu.siacs.conversations.entities.PresenceTemplate;
-import eu.siacs.conversations.entities.Roster;
 import eu.siacs.conversations.entities.ServiceDiscoveryResult;
 import eu.siacs.conversations.generator.AbstractGenerator;
 import eu.siacs.conversations.generator.IqGenerator;
@@ -127,9 +129,11 @@ import eu.siacs.conversations.ui.UiCallback;
 import eu.siacs.conversations.ui.interfaces.OnAvatarPublication;
 import eu.siacs.conversations.ui.interfaces.OnMediaLoaded;
 import eu.siacs.conversations.ui.interfaces.OnSearchResultsAvailable;
+import eu.siacs.conversations.utils.Cancellable;
 import eu.siacs.conversations.utils.Compatibility;
 import eu.siacs.conversations.utils.ConversationsFileObserver;
 import eu.siacs.conversations.utils.CryptoHelper;
+import eu.siacs.conversations.utils.DatabaseTaskScheduler;
 import eu.siacs.conversations.utils.EasyOnboardingInvite;
 import eu.siacs.conversations.utils.ExceptionHelper;
 import eu.siacs.conversations.utils.MimeUtils;
@@ -146,7 +150,9 @@ import eu.siacs.conversations.utils.XmppUri;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xml.LocalizedContent;
 import eu.siacs.conversations.xml.Namespace;
+import eu.siacs.conversations.xmpp.IqMetrics;
 import eu.siacs.conversations.xmpp.Jid;
+import eu.siacs.conversations.xmpp.JidCache;
 import eu.siacs.conversations.xmpp.OnBindListener;
 import eu.siacs.conversations.xmpp.OnContactStatusChanged;
 import eu.siacs.conversations.xmpp.OnIqPacketReceived;
@@ -157,11 +163,13 @@ import eu.siacs.conversations.xmpp.OnPresencePacketReceived;
 import eu.siacs.conversations.xmpp.OnStatusChanged;
 import eu.siacs.conversations.xmpp.OnUpdateBlocklist;
 import eu.siacs.conversations.xmpp.Patches;
+import eu.siacs.conversations.xmpp.StanzaDispatcher;
 import eu.siacs.conversations.xmpp.XmppConnection;
 import eu.siacs.conversations.xmpp.chatstate.ChatState;
 import eu.siacs.conversations.xmpp.forms.Data;
 import eu.siacs.conversations.xmpp.jingle.AbstractJingleConnection;
 import eu.siacs.conversations.xmpp.jingle.JingleConnectionManager;
+import eu.siacs.conversations.xmpp.jingle.JingleInBandTransport;
 import eu.siacs.conversations.xmpp.jingle.JingleRtpConnection;
 import eu.siacs.conversations.xmpp.jingle.Media;
 import eu.siacs.conversations.xmpp.jingle.RtpEndUserState;
@@ -183,6 +191,7 @@ public class XmppConnectionService extends Service {
     public static final String ACTION_DISMISS_ERROR_NOTIFICATIONS = "dismiss_error";
     public static final String ACTION_TRY_AGAIN = "try_again";
     public static final String ACTION_IDLE_PING = "idle_ping";
+    public static final String ACTION_PING = "ping";
     public static final String ACTION_FCM_TOKEN_REFRESH = "fcm_token_refresh";
     public static final String ACTION_FCM_MESSAGE_RECEIVED = "fcm_message_received";
     public static final String ACTION_DISMISS_CALL = "dismiss_call";
@@ -196,12 +205,16 @@ public class XmppConnectionService extends Service {
     private final static Executor FILE_OBSERVER_EXECUTOR = Executors.newSingleThreadExecutor();
     private final static Executor FILE_ATTACHMENT_EXECUTOR = Executors.newSingleThreadExecutor();
     private final static SerialSingleThreadExecutor VIDEO_COMPRESSION_EXECUTOR = new SerialSingleThreadExecutor("VideoCompression");
-    private final SerialSingleThreadExecutor mDatabaseWriterExecutor = new SerialSingleThreadExecutor("DatabaseWriter");
-    private final SerialSingleThreadExecutor mDatabaseReaderExecutor = new SerialSingleThreadExecutor("DatabaseReader");
+    private final DatabaseTaskScheduler mDatabaseScheduler = new DatabaseTaskScheduler("Database");
     private final SerialSingleThreadExecutor mNotificationExecutor = new SerialSingleThreadExecutor("NotificationExecutor");
     private final ReplacingTaskManager mRosterSyncTaskManager = new ReplacingTaskManager();
+    private final Map<Account, Long> pendingRosterSyncs = new ConcurrentHashMap<>();
     private final IBinder mBinder = new XmppConnectionBinder();
     private final List<Conversation> conversations = new CopyOnWriteArrayList<>();
+    private final ConversationLookupIndex conversationLookupIndex = new ConversationLookupIndex();
+    private final UiUpdateDispatcher uiUpdateDispatcher = createUiUpdateDispatcher();
+    private EntityCapabilitiesCache capabilitiesCache;
+    private final Map<String, Long> startupTimings = new LinkedHashMap<>();
     private final IqGenerator mIqGenerator = new IqGenerator(this);
     private final Set<String> mInProgressAvatarFetches = new HashSet<>();
     private final Set<String> mOmittedPepAvatarFetches = new HashSet<>();
@@ -261,6 +274,10 @@ public class XmppConnectionService extends Service {
 
         @Override
         public boolean onMessageAcknowledged(final Account account, final Jid to, final String id) {
+            if (id.startsWith(JingleInBandTransport.MESSAGE_ID_PREFIX)) {
+                mJingleConnectionManager.onIbbMessageAcknowledged(account, id);
+                return false;
+            }
             if (id.startsWith(JingleRtpConnection.JINGLE_MESSAGE_PROPOSE_ID_PREFIX)) {
                 final String sessionId = id.substring(JingleRtpConnection.JINGLE_MESSAGE_PROPOSE_ID_PREFIX.length());
                 mJingleConnectionManager.updateProposedSessionDiscovered(
@@ -382,7 +399,7 @@ public class XmppConnectionService extends Service {
         }
     };
     private final AtomicLong mLastExpiryRun = new AtomicLong(0);
-    private final LruCache<Pair<String, String>, ServiceDiscoveryResult> discoCache = new LruCache<>(20);
+    private final WakeUpScheduler wakeUpScheduler = new WakeUpScheduler(this::setWakeUpAlarm);
     private final OnStatusChanged statusListener = new OnStatusChanged() {
 
         @Override
@@ -446,7 +463,7 @@ public class XmppConnectionService extends Service {
                 for (Conversation conversation : pendingJoins) {
                     joinMuc(conversation);
                 }
-                scheduleWakeUpCall(Config.PING_MAX_INTERVAL, account.getUuid().hashCode());
+                scheduleWakeUpCall(Config.PING_MAX_INTERVAL, account);
             } else if (account.getStatus() == Account.State.OFFLINE || account.getStatus() == Account.State.DISABLED) {
                 resetSendingToWaiting(account);
                 if (account.isEnabled() && isInLowPingTimeoutMode(account)) {
@@ -454,7 +471,7 @@ public class XmppConnectionService extends Service {
                     reconnectAccount(account, true, false);
                 } else {
                     final int timeToReconnect = SECURE_RANDOM.nextInt(10) + 2;
-                    scheduleWakeUpCall(timeToReconnect, account.getUuid().hashCode());
+                    scheduleWakeUpCall(timeToReconnect, account);
                 }
             } else if (account.getStatus() == Account.State.REGISTRATION_SUCCESSFUL) {
                 databaseBackend.updateAccount(account);
@@ -470,7 +487,7 @@ public class XmppConnectionService extends Service {
                     } else {
                         final int attempt = connection.getAttempt() + 1;
                         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": error connecting account. try again in " + next + "s for the " + attempt + " time. lowPingTimeout=" + lowPingTimeoutMode);
-                        scheduleWakeUpCall(next, account.getUuid().hashCode());
+                        scheduleWakeUpCall(next, account);
                     }
                 }
             }
@@ -632,7 +649,41 @@ public class XmppConnectionService extends Service {
     }
 
     public Conversation find(final Account account, final Jid jid) {
-        return find(getConversations(), account, jid);
+        if (account == null) {
+            return find(getConversations(), null, jid);
+        }
+        return jid == null ? null : conversationLookupIndex.find(account, jid);
+    }
+
+    public String getUiUpdateStatistics() {
+        return uiUpdateDispatcher.getStatistics();
+    }
+
+    public String getConversationLookupStatistics() {
+        return conversationLookupIndex.getStatistics();
+    }
+
+    private void recordStartupTiming(final String phase, final long duration) {
+        synchronized (this.startupTimings) {
+            this.startupTimings.put(phase, duration);
+        }
+    }
+
+    /**
+     * Returns how long the individual phases of restoring state from the database took, in
+     * the order they finished.
+     */
+    public String getStartupTimings() {
+        final StringBuilder builder = new StringBuilder();
+        synchronized (this.startupTimings) {
+            for (final Map.Entry<String, Long> entry : this.startupTimings.entrySet()) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(entry.getKey()).append('=').append(entry.getValue()).append("ms");
+            }
+        }
+        return builder.toString();
     }
 
     public boolean isMuc(final Account account, final Jid jid) {
@@ -814,6 +865,11 @@ public class XmppConnectionService extends Service {
                         scheduleNextIdlePing();
                     }
                     break;
+                case ACTION_PING:
+                    final long now = SystemClock.elapsedRealtime();
+                    wakeUpScheduler.onWakeUp(now);
+                    Log.d(Config.LOGTAG, "woke up for ping. " + wakeUpScheduler.getStatistics(now));
+                    break;
                 case ACTION_FCM_MESSAGE_RECEIVED:
                     pushedAccountHash = intent.getStringExtra("account");
                     Log.d(Config.LOGTAG, "push message arrived in service. account=" + pushedAccountHash);
@@ -844,7 +900,7 @@ public class XmppConnectionService extends Service {
                     final boolean lowTimeout = isInLowPingTimeoutMode(account);
                     account.getXmppConnection().sendPing();
                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + " send ping (action=" + action + ",lowTimeout=" + lowTimeout + ")");
-                    scheduleWakeUpCall(lowTimeout ? Config.LOW_PING_TIMEOUT : Config.PING_TIMEOUT, account.getUuid().hashCode());
+                    scheduleWakeUpCall(lowTimeout ? Config.LOW_PING_TIMEOUT : Config.PING_TIMEOUT, account);
                 }
             }
             WakeLockHelper.release(wakeLock);
@@ -892,7 +948,7 @@ public class XmppConnectionService extends Service {
                                 this.reconnectAccount(account, true, interactive);
                             } else {
                                 int secs = (int) (pingTimeoutIn / 1000);
-                                this.scheduleWakeUpCall(secs, account.getUuid().hashCode());
+                                this.scheduleWakeUpCall(secs, account);
                             }
                         } else {
                             pingCandidates.add(account);
@@ -901,10 +957,11 @@ public class XmppConnectionService extends Service {
                                 if (mLowPingTimeoutMode.add(account.getJid().asBareJid())) {
                                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": entering low ping timeout mode");
                                 }
-                            } else if (msToNextPing <= 0) {
+                            } else if (msToNextPing <= (isUiAction ? 0 : Config.WAKE_UP_ALIGNMENT * 1000L)) {
+                                // due soon enough to share this wake-up
                                 pingNow = true;
                             } else {
-                                this.scheduleWakeUpCall((int) (msToNextPing / 1000), account.getUuid().hashCode());
+                                this.scheduleWakeUpCall((int) (msToNextPing / 1000), account);
                                 if (mLowPingTimeoutMode.remove(account.getJid().asBareJid())) {
                                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": leaving low ping timeout mode");
                                 }
@@ -924,12 +981,12 @@ public class XmppConnectionService extends Service {
                         reconnectAccount(account, true, interactive);
                     } else if (discoTimeout < 0) {
                         account.getXmppConnection().sendDiscoTimeout();
-                        scheduleWakeUpCall((int) Math.min(timeout, discoTimeout), account.getUuid().hashCode());
+                        scheduleWakeUpCall((int) Math.min(timeout, discoTimeout), account);
                     } else {
-                        scheduleWakeUpCall((int) Math.min(timeout, discoTimeout), account.getUuid().hashCode());
+                        scheduleWakeUpCall((int) Math.min(timeout, discoTimeout), account);
                     }
                 } else {
-                    if (account.getXmppConnection().getTimeToNextAttempt() <= 0) {
+                    if (account.getXmppConnection().getTimeToNextAttempt() <= Config.WAKE_UP_ALIGNMENT) {
                         reconnectAccount(account, true, interactive);
                     }
                 }
@@ -1067,7 +1124,7 @@ public class XmppConnectionService extends Service {
                 }
             }
             if (account.setShowErrorNotification(true)) {
-                mDatabaseWriterExecutor.execute(() -> databaseBackend.updateAccount(account));
+                updateAccountAsync(account);
             }
         }
         mNotificationService.updateErrorNotification();
@@ -1078,7 +1135,7 @@ public class XmppConnectionService extends Service {
             if (account.hasErrorStatus()) {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": dismissing error notification");
                 if (account.setShowErrorNotification(false)) {
-                    mDatabaseWriterExecutor.execute(() -> databaseBackend.updateAccount(account));
+                    updateAccountAsync(account);
                 }
             }
         }
@@ -1090,7 +1147,7 @@ public class XmppConnectionService extends Service {
 
     public void expireOldMessages(final boolean resetHasMessagesLeftOnServer) {
         mLastExpiryRun.set(SystemClock.elapsedRealtime());
-        mDatabaseWriterExecutor.execute(() -> {
+        mDatabaseScheduler.execute(DatabaseTaskScheduler.Lane.MAINTENANCE, () -> {
             long timestamp = getAutomaticMessageDeletionDate();
             if (timestamp > 0) {
                 databaseBackend.expireOldMessages(timestamp);
@@ -1171,8 +1228,11 @@ public class XmppConnectionService extends Service {
 
         Log.d(Config.LOGTAG, "initializing database...");
         this.databaseBackend = DatabaseBackend.getInstance(getApplicationContext());
+        this.capabilitiesCache = new EntityCapabilitiesCache(databaseBackend);
         Log.d(Config.LOGTAG, "restoring accounts...");
+        final long startAccountsRestore = SystemClock.elapsedRealtime();
         this.accounts = databaseBackend.getAccounts();
+        recordStartupTiming("accounts", SystemClock.elapsedRealtime() - startAccountsRestore);
         final SharedPreferences.Editor editor = getPreferences().edit();
         if (this.accounts.size() == 0 && Arrays.asList("Sony", "Sony Ericsson").contains(Build.MANUFACTURER)) {
             editor.putBoolean(SettingsActivity.KEEP_FOREGROUND_SERVICE, true);
@@ -1304,6 +1364,7 @@ public class XmppConnectionService extends Service {
         }
         destroyed = false;
         fileObserver.stopWatching();
+        uiUpdateDispatcher.shutdown();
         super.onDestroy();
     }
 
@@ -1402,6 +1463,18 @@ public class XmppConnectionService extends Service {
                 new Thread(() -> disconnect(account, false)).start();
             }
         }
+        databaseBackend.flushPendingMessageWrites();
+        Log.d(Config.LOGTAG, "message writer: " + databaseBackend.getMessageWriterStatistics());
+        Log.d(Config.LOGTAG, "conversation lookups: " + conversationLookupIndex.getStatistics());
+        Log.d(Config.LOGTAG, "database lanes: " + mDatabaseScheduler.getStatistics());
+        Log.d(Config.LOGTAG, "ui updates: " + uiUpdateDispatcher.getStatistics());
+        Log.d(Config.LOGTAG, "capabilities: " + capabilitiesCache.getStatistics());
+        Log.d(Config.LOGTAG, "thumbnails: " + fileBackend.getThumbnailStatistics());
+        Log.d(Config.LOGTAG, "notifications: " + mNotificationService.getStatistics());
+        Log.d(Config.LOGTAG, "jids: " + JidCache.getStatistics());
+        Log.d(Config.LOGTAG, "iqs: " + IqMetrics.getStatistics());
+        Log.d(Config.LOGTAG, "stanza dispatch: " + StanzaDispatcher.getStatistics());
+        Log.d(Config.LOGTAG, "wake-ups: " + wakeUpScheduler.getStatistics(SystemClock.elapsedRealtime()));
         if (stop || activeAccounts == 0) {
             Log.d(Config.LOGTAG, "good bye");
             stopSelf();
@@ -1430,24 +1503,32 @@ public class XmppConnectionService extends Service {
         }
     }
 
-    public void scheduleWakeUpCall(int seconds, int requestCode) {
-        final long timeToWake = SystemClock.elapsedRealtime() + (seconds < 0 ? 1 : seconds + 1) * 1000L;
+    /**
+     * Makes sure the service wakes up within the given number of seconds to check the account.
+     * All accounts share one alarm; see {@link WakeUpScheduler}.
+     */
+    public void scheduleWakeUpCall(final int seconds, final Account account) {
+        final long deadline = SystemClock.elapsedRealtime() + (seconds < 0 ? 1 : seconds + 1) * 1000L;
+        wakeUpScheduler.schedule(account.getJid().asBareJid().toString(), deadline);
+    }
+
+    private void setWakeUpAlarm(final long timeToWake) {
         final AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
         if (alarmManager == null) {
             return;
         }
         final Intent intent = new Intent(this, EventReceiver.class);
-        intent.setAction("ping");
+        intent.setAction(ACTION_PING);
         try {
             final PendingIntent pendingIntent;
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                 pendingIntent =
                         PendingIntent.getBroadcast(
-                                this, requestCode, intent, PendingIntent.FLAG_IMMUTABLE);
+                                this, 0, intent, PendingIntent.FLAG_IMMUTABLE);
             } else {
                 pendingIntent =
                         PendingIntent.getBroadcast(
-                                this, requestCode, intent, 0);
+                                this, 0, intent, 0);
             }
             alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, timeToWake, pendingIntent);
         } catch (RuntimeException e) {
@@ -1939,11 +2020,13 @@ public class XmppConnectionService extends Service {
                     iterator.remove();
                 }
             }
+            conversationLookupIndex.rebuild(this.conversations);
             long diffConversationsRestore = SystemClock.elapsedRealtime() - startTimeConversationsRestore;
+            recordStartupTiming("conversations", diffConversationsRestore);
             Log.d(Config.LOGTAG, "finished restoring conversations in " + diffConversationsRestore + "ms");
             Runnable runnable = () -> {
                 if (DatabaseBackend.requiresMessageIndexRebuild()) {
-                    DatabaseBackend.getInstance(this).rebuildMessagesIndex();
+                    mDatabaseScheduler.execute(DatabaseTaskScheduler.Lane.MAINTENANCE, () -> DatabaseBackend.getInstance(this).rebuildMessagesIndex());
                 }
                 final long deletionDate = getAutomaticMessageDeletionDate();
                 mLastExpiryRun.set(SystemClock.elapsedRealtime());
@@ -1952,38 +2035,48 @@ public class XmppConnectionService extends Service {
                     databaseBackend.expireOldMessages(deletionDate);
                 }
                 Log.d(Config.LOGTAG, "restoring roster...");
+                final long startRosterRestore = SystemClock.elapsedRealtime();
                 for (Account account : accounts) {
                     databaseBackend.readRoster(account.getRoster());
                     account.initAccountServices(XmppConnectionService.this); //roster needs to be loaded at this stage
                 }
+                recordStartupTiming("roster", SystemClock.elapsedRealtime() - startRosterRestore);
+                final long startCapabilitiesPreload = SystemClock.elapsedRealtime();
+                capabilitiesCache.preload(Config.CAPS_CACHE_PRELOAD);
+                recordStartupTiming("capabilities", SystemClock.elapsedRealtime() - startCapabilitiesPreload);
                 getBitmapCache().evictAll();
                 loadPhoneContacts();
                 Log.d(Config.LOGTAG, "restoring messages...");
                 final long startMessageRestore = SystemClock.elapsedRealtime();
                 final Conversation quickLoad = QuickLoader.get(this.conversations);
                 if (quickLoad != null) {
-                    restoreMessages(quickLoad);
+                    restoreMessages(quickLoad, databaseBackend.getMessages(quickLoad, Config.PAGE_SIZE));
                     updateConversationUi();
                     final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
+                    recordStartupTiming("quick load", diffMessageRestore);
                     Log.d(Config.LOGTAG, "quickly restored " + quickLoad.getName() + " after " + diffMessageRestore + "ms");
                 }
-                for (Conversation conversation : this.conversations) {
-                    if (quickLoad != conversation) {
-                        restoreMessages(conversation);
-                    }
+                final List<Conversation> remaining = new ArrayList<>(this.conversations);
+                remaining.remove(quickLoad);
+                final Map<String, List<Message>> pages = databaseBackend.getLatestMessages(remaining, Config.PAGE_SIZE);
+                for (final Conversation conversation : remaining) {
+                    final List<Message> messages = pages.get(conversation.getUuid());
+                    restoreMessages(conversation, messages == null ? Collections.emptyList() : messages);
                 }
                 mNotificationService.finishBacklog();
                 restoredFromDatabaseLatch.countDown();
                 final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
+                recordStartupTiming("messages", diffMessageRestore);
                 Log.d(Config.LOGTAG, "finished restoring messages in " + diffMessageRestore + "ms");
+                Log.d(Config.LOGTAG, "startup timings: " + getStartupTimings());
                 updateConversationUi();
             };
-            mDatabaseReaderExecutor.execute(runnable); //will contain one write command (expiry) but that's fine
+            mDatabaseScheduler.execute(DatabaseTaskScheduler.Lane.INTERACTIVE, runnable); //will contain one write command (expiry) but that's fine
         }
     }
 
-    private void restoreMessages(Conversation conversation) {
-        conversation.addAll(0, databaseBackend.getMessages(conversation, Config.PAGE_SIZE));
+    private void restoreMessages(final Conversation conversation, final List<Message> messages) {
+        conversation.addAll(0, messages);
         conversation.findUnsentTextMessages(message -> markMessage(message, Message.STATUS_WAITING));
         conversation.findUnreadMessagesAndCalls(mNotificationService::pushFromBacklog);
     }
@@ -2017,8 +2110,15 @@ public class XmppConnectionService extends Service {
     }
 
 
+    /**
+     * Schedules a write of the contacts that changed. Requests arriving within {@link
+     * Config#ROSTER_SYNC_DELAY} of each other replace the pending write, so a burst of roster
+     * pushes ends up as a single delta write at most {@link Config#ROSTER_SYNC_MAX_DELAY} after
+     * the first request.
+     */
     public void syncRoster(final Account account) {
-        mRosterSyncTaskManager.execute(account, () -> databaseBackend.writeRoster(account.getRoster()));
+        pendingRosterSyncs.putIfAbsent(account, SystemClock.elapsedRealtime());
+        mRosterSyncTaskManager.execute(account, new RosterSyncTask(account));
     }
 
     public List<Conversation> getConversations() {
@@ -2117,7 +2217,10 @@ public class XmppConnectionService extends Service {
         Log.d(Config.LOGTAG, "load more messages for " + conversation.getName() + " prior to " + MessageGenerator.getTimestamp(timestamp));
         final Runnable runnable = () -> {
             final Account account = conversation.getAccount();
-            List<Message> messages = databaseBackend.getMessages(conversation, 50, timestamp);
+            final List<String> anchors = conversation.getUuidsOfMessagesSentAt(timestamp);
+            final long start = SystemClock.elapsedRealtime();
+            List<Message> messages = databaseBackend.getMessages(conversation, 50, timestamp, anchors);
+            Log.d(Config.LOGTAG, "loaded " + messages.size() + " messages for " + conversation.getName() + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
             if (messages.size() > 0) {
                 conversation.addAll(0, messages);
                 callback.onMoreMessagesLoaded(messages.size(), conversation);
@@ -2142,7 +2245,7 @@ public class XmppConnectionService extends Service {
                 }
             }
         };
-        mDatabaseReaderExecutor.execute(runnable);
+        mDatabaseScheduler.execute(DatabaseTaskScheduler.Lane.INTERACTIVE, runnable);
     }
 
     public List<Account> getAccounts() {
@@ -2277,11 +2380,12 @@ public class XmppConnectionService extends Service {
                 }
             };
             if (async) {
-                mDatabaseReaderExecutor.execute(runnable);
+                mDatabaseScheduler.execute(DatabaseTaskScheduler.Lane.INTERACTIVE, runnable);
             } else {
                 runnable.run();
             }
             this.conversations.add(conversation);
+            this.conversationLookupIndex.add(conversation);
             updateConversationUi();
             return conversation;
         }
@@ -2319,6 +2423,7 @@ public class XmppConnectionService extends Service {
             }
             updateConversation(conversation);
             this.conversations.remove(conversation);
+            this.conversationLookupIndex.remove(conversation);
             updateConversationUi();
         }
     }
@@ -2477,9 +2582,11 @@ public class XmppConnectionService extends Service {
                         }
                     }
                     conversations.remove(conversation);
+                    conversationLookupIndex.remove(conversation);
                     mNotificationService.clear(conversation);
                 }
             }
+            conversationLookupIndex.remove(account);
             if (account.getXmppConnection() != null) {
                 new Thread(() -> disconnect(account, !connected)).start();
             }
@@ -2488,8 +2595,9 @@ public class XmppConnectionService extends Service {
                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to delete account");
                 }
             };
-            mDatabaseWriterExecutor.execute(runnable);
+            mDatabaseScheduler.execute(DatabaseTaskScheduler.Lane.WRITE, runnable);
             this.accounts.remove(account);
+            this.pendingRosterSyncs.remove(account);
             this.mRosterSyncTaskManager.clear(account);
             updateAccountUi();
             mNotificationService.updateErrorNotification();
@@ -2895,6 +3003,7 @@ public class XmppConnectionService extends Service {
                     }
                     if (!joinJid.equals(conversation.getJid())) {
                         conversation.setContactJid(joinJid);
+                        conversationLookupIndex.update(conversation);
                         databaseBackend.updateConversation(conversation);
                     }
 
@@ -3138,6 +3247,7 @@ public class XmppConnectionService extends Service {
         if (!full.equals(conversation.getJid())) {
             Log.d(Config.LOGTAG, "nick changed. updating");
             conversation.setContactJid(full);
+            conversationLookupIndex.update(conversation);
             databaseBackend.updateConversation(conversation);
         }
 
@@ -3182,6 +3292,7 @@ public class XmppConnectionService extends Service {
             sendPresencePacket(account, packet);
         } else {
             conversation.setContactJid(joinJid);
+            conversationLookupIndex.update(conversation);
             databaseBackend.updateConversation(conversation);
             if (conversation.getAccount().getStatus() == Account.State.ONLINE) {
                 Bookmark bookmark = conversation.getBookmark();
@@ -3542,7 +3653,7 @@ public class XmppConnectionService extends Service {
     }
 
     public void createMessageAsync(final Message message) {
-        mDatabaseWriterExecutor.execute(() -> databaseBackend.createMessage(message));
+        mDatabaseScheduler.execute(DatabaseTaskScheduler.Lane.WRITE, () -> databaseBackend.createMessage(message));
     }
 
     public void updateMessage(Message message, String uuid) {
@@ -4003,7 +4114,15 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateConversation(final Conversation conversation) {
-        mDatabaseWriterExecutor.execute(() -> databaseBackend.updateConversation(conversation));
+        mDatabaseScheduler.execute(DatabaseTaskScheduler.Lane.WRITE, "conversation:" + conversation.getUuid(), () -> databaseBackend.updateConversation(conversation));
+    }
+
+    private void updateAccountAsync(final Account account) {
+        mDatabaseScheduler.execute(DatabaseTaskScheduler.Lane.WRITE, "account:" + account.getUuid(), () -> databaseBackend.updateAccount(account));
+    }
+
+    public String getDatabaseSchedulerStatistics() {
+        return mDatabaseScheduler.getStatistics();
     }
 
     private void reconnectAccount(final Account account, final boolean force, final boolean interactive) {
@@ -4023,7 +4142,7 @@ public class XmppConnectionService extends Service {
                 connection.prepareNewConnection();
                 connection.interrupt();
                 thread.start();
-                scheduleWakeUpCall(Config.CONNECT_DISCO_TIMEOUT, account.getUuid().hashCode());
+                scheduleWakeUpCall(Config.CONNECT_DISCO_TIMEOUT, account);
             } else {
                 disconnect(account, force || account.getTrueStatus().isError() || !hasInternet);
                 account.getRoster().clearPresences();
@@ -4221,7 +4340,20 @@ public class XmppConnectionService extends Service {
         }
     }
 
+    private UiUpdateDispatcher createUiUpdateDispatcher() {
+        final UiUpdateDispatcher dispatcher = new UiUpdateDispatcher(Config.UI_UPDATE_INTERVAL);
+        dispatcher.setDelivery(UiUpdateDispatcher.Category.CONVERSATION, this::deliverConversationUpdate);
+        dispatcher.setDelivery(UiUpdateDispatcher.Category.ACCOUNT, this::deliverAccountUpdate);
+        dispatcher.setDelivery(UiUpdateDispatcher.Category.ROSTER, this::deliverRosterUpdate);
+        dispatcher.setDelivery(UiUpdateDispatcher.Category.MUC_ROSTER, this::deliverMucRosterUpdate);
+        return dispatcher;
+    }
+
     public void updateConversationUi() {
+        uiUpdateDispatcher.request(UiUpdateDispatcher.Category.CONVERSATION);
+    }
+
+    private void deliverConversationUpdate() {
         for (OnConversationUpdate listener : threadSafeList(this.mOnConversationUpdates)) {
             listener.onConversationUpdate();
         }
@@ -4240,12 +4372,20 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateAccountUi() {
+        uiUpdateDispatcher.request(UiUpdateDispatcher.Category.ACCOUNT);
+    }
+
+    private void deliverAccountUpdate() {
         for (final OnAccountUpdate listener : threadSafeList(this.mOnAccountUpdates)) {
             listener.onAccountUpdate();
         }
     }
 
     public void updateRosterUi() {
+        uiUpdateDispatcher.request(UiUpdateDispatcher.Category.ROSTER);
+    }
+
+    private void deliverRosterUpdate() {
         for (OnRosterUpdate listener : threadSafeList(this.mOnRosterUpdates)) {
             listener.onRosterUpdate();
         }
@@ -4271,6 +4411,10 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateMucRosterUi() {
+        uiUpdateDispatcher.request(UiUpdateDispatcher.Category.MUC_ROSTER);
+    }
+
+    private void deliverMucRosterUpdate() {
         for (OnMucRosterUpdate listener : threadSafeList(this.mOnMucRosterUpdate)) {
             listener.onMucRosterUpdate();
         }
@@ -4338,7 +4482,7 @@ public class XmppConnectionService extends Service {
                     databaseBackend.updateMessage(message, false);
                 }
             };
-            mDatabaseWriterExecutor.execute(runnable);
+            mDatabaseScheduler.execute(DatabaseTaskScheduler.Lane.WRITE, runnable);
             updateConversationUi();
             updateUnreadCountBadge();
             return readMessages;
@@ -4624,7 +4768,7 @@ public class XmppConnectionService extends Service {
             databaseBackend.deleteMessagesInConversation(conversation);
             databaseBackend.updateConversation(conversation);
         };
-        mDatabaseWriterExecutor.execute(runnable);
+        mDatabaseScheduler.execute(DatabaseTaskScheduler.Lane.WRITE, runnable);
     }
 
     public boolean sendBlockRequest(final Blockable blockable, boolean reportSpam) {
@@ -4660,6 +4804,7 @@ public class XmppConnectionService extends Service {
                         && conversation.getMode() == Conversation.MODE_SINGLE
                         && jidMatches) {
                     this.conversations.remove(conversation);
+                    this.conversationLookupIndex.remove(conversation);
                     markRead(conversation);
                     conversation.setStatus(Conversation.STATUS_ARCHIVED);
                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": archiving conversation " + conversation.getJid().asBareJid() + " because jid was blocked");
@@ -4703,72 +4848,68 @@ public class XmppConnectionService extends Service {
     }
 
     public ServiceDiscoveryResult getCachedServiceDiscoveryResult(Pair<String, String> key) {
-        ServiceDiscoveryResult result = discoCache.get(key);
-        if (result != null) {
-            return result;
-        } else {
-            result = databaseBackend.findDiscoveryResult(key.first, key.second);
-            if (result != null) {
-                discoCache.put(key, result);
-            }
-            return result;
-        }
+        return capabilitiesCache.get(key);
     }
 
     public void fetchCaps(Account account, final Jid jid, final Presence presence) {
         final Pair<String, String> key = new Pair<>(presence.getHash(), presence.getVer());
         final ServiceDiscoveryResult disco = getCachedServiceDiscoveryResult(key);
+        final Contact contact = account.getRoster().getContact(jid);
         if (disco != null) {
             presence.setServiceDiscoveryResult(disco);
-            final Contact contact = account.getRoster().getContact(jid);
             if (contact.refreshRtpCapability()) {
                 syncRoster(account);
             }
-        } else {
-            final IqPacket request = new IqPacket(IqPacket.TYPE.GET);
-            request.setTo(jid);
-            final String node = presence.getNode();
-            final String ver = presence.getVer();
-            final Element query = request.query(Namespace.DISCO_INFO);
-            if (node != null && ver != null) {
-                query.setAttribute("node", node + "#" + ver);
-            }
-            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": making disco request for " + key.second + " to " + jid);
-            sendIqPacket(account, request, (a, response) -> {
-                if (response.getType() == IqPacket.TYPE.RESULT) {
-                    final ServiceDiscoveryResult discoveryResult = new ServiceDiscoveryResult(response);
-                    if (presence.getVer().equals(discoveryResult.getVer())) {
-                        databaseBackend.insertDiscoveryResult(discoveryResult);
-                        injectServiceDiscoveryResult(a.getRoster(), presence.getHash(), presence.getVer(), discoveryResult);
-                    } else {
-                        Log.d(Config.LOGTAG, a.getJid().asBareJid() + ": mismatch in caps for contact " + jid + " " + presence.getVer() + " vs " + discoveryResult.getVer());
-                    }
-                } else {
-                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to fetch caps from " + jid);
-                }
-            });
+        } else if (capabilitiesCache.await(key, account, jid, presence.getNode(), contact, presence)) {
+            sendCapsRequest(key, account, jid, presence.getNode());
         }
     }
 
-    private void injectServiceDiscoveryResult(Roster roster, String hash, String ver, ServiceDiscoveryResult disco) {
-        boolean rosterNeedsSync = false;
-        for (final Contact contact : roster.getContacts()) {
-            boolean serviceDiscoverySet = false;
-            for (final Presence presence : contact.getPresences().getPresences()) {
-                if (hash.equals(presence.getHash()) && ver.equals(presence.getVer())) {
-                    presence.setServiceDiscoveryResult(disco);
-                    serviceDiscoverySet = true;
+    private void sendCapsRequest(final Pair<String, String> key, final Account account, final Jid jid, final String node) {
+        final IqPacket request = new IqPacket(IqPacket.TYPE.GET);
+        request.setTo(jid);
+        final Element query = request.query(Namespace.DISCO_INFO);
+        if (node != null && key.second != null) {
+            query.setAttribute("node", node + "#" + key.second);
+        }
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": making disco request for " + key.second + " to " + jid);
+        sendIqPacket(account, request, (a, response) -> {
+            if (response.getType() == IqPacket.TYPE.RESULT) {
+                final ServiceDiscoveryResult discoveryResult = new ServiceDiscoveryResult(response);
+                if (key.second.equals(discoveryResult.getVer())) {
+                    databaseBackend.insertDiscoveryResult(discoveryResult);
+                    injectServiceDiscoveryResult(key, discoveryResult);
+                    return;
+                } else {
+                    Log.d(Config.LOGTAG, a.getJid().asBareJid() + ": mismatch in caps for contact " + jid + " " + key.second + " vs " + discoveryResult.getVer());
                 }
+            } else {
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to fetch caps from " + jid);
             }
-            if (serviceDiscoverySet) {
-                rosterNeedsSync |= contact.refreshRtpCapability();
+            final EntityCapabilitiesCache.Waiter next = capabilitiesCache.retry(key);
+            if (next != null) {
+                sendCapsRequest(key, next.account, next.jid, next.node);
+            }
+        });
+    }
+
+    private void injectServiceDiscoveryResult(final Pair<String, String> key, final ServiceDiscoveryResult disco) {
+        final Set<Account> rosterNeedsSync = new HashSet<>();
+        for (final EntityCapabilitiesCache.Waiter waiter : capabilitiesCache.complete(key, disco)) {
+            waiter.presence.setServiceDiscoveryResult(disco);
+            if (waiter.contact.refreshRtpCapability()) {
+                rosterNeedsSync.add(waiter.account);
             }
         }
-        if (rosterNeedsSync) {
-            syncRoster(roster.getAccount());
+        for (final Account account : rosterNeedsSync) {
+            syncRoster(account);
         }
     }
 
+    public String getCapabilitiesCacheStatistics() {
+        return capabilitiesCache.getStatistics();
+    }
+
     public void fetchMamPreferences(Account account, final OnMamPreferencesFetched callback) {
         final MessageArchiveService.Version version = MessageArchiveService.Version.get(account);
         IqPacket request = new IqPacket(IqPacket.TYPE.GET);
@@ -4885,6 +5026,38 @@ public class XmppConnectionService extends Service {
         }
     }
 
+    private class RosterSyncTask implements Runnable, Cancellable {
+
+        private final Account account;
+        private final CountDownLatch cancelled = new CountDownLatch(1);
+
+        private RosterSyncTask(final Account account) {
+            this.account = account;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled.countDown();
+        }
+
+        @Override
+        public void run() {
+            final Long requested = pendingRosterSyncs.get(account);
+            final long deadline = requested == null ? 0 : requested + Config.ROSTER_SYNC_MAX_DELAY;
+            final long delay = Math.min(Config.ROSTER_SYNC_DELAY, deadline - SystemClock.elapsedRealtime());
+            try {
+                if (delay > 0 && cancelled.await(delay, TimeUnit.MILLISECONDS)) {
+                    // replaced by a newer request which is going to write our changes as well
+                    return;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            pendingRosterSyncs.remove(account);
+            databaseBackend.writeRoster(account.getRoster());
+        }
+    }
+
     public interface OnMamPreferencesFetched {
         void onPreferencesFetched(Element prefs);
 
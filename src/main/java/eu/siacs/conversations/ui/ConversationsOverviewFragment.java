@@ -46,6 +46,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.databinding.DataBindingUtil;
 import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -306,6 +307,19 @@ public class ConversationsOverviewFragment extends XmppFragment {
 		});
 		this.binding.list.setAdapter(this.conversationsAdapter);
 		this.binding.list.setLayoutManager(new LinearLayoutManager(getActivity(),LinearLayoutManager.VERTICAL,false));
+		this.binding.list.addOnScrollListener(new RecyclerView.OnScrollListener() {
+			private int lastFirstVisible = -1;
+
+			@Override
+			public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+				final LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+				final int firstVisible = layoutManager == null ? -1 : layoutManager.findFirstVisibleItemPosition();
+				if (firstVisible != lastFirstVisible) {
+					lastFirstVisible = firstVisible;
+					prefetchAvatars();
+				}
+			}
+		});
 		this.touchHelper = new ItemTouchHelper(this.callback);
 		this.touchHelper.attachToRecyclerView(this.binding.list);
 		return binding.getRoot();
@@ -428,6 +442,21 @@ public class ConversationsOverviewFragment extends XmppFragment {
 		if (scrollState != null) {
 			setScrollPosition(scrollState);
 		}
+		prefetchAvatars();
+	}
+
+	private void prefetchAvatars() {
+		if (this.binding == null || this.activity == null || this.activity.xmppConnectionService == null) {
+			return;
+		}
+		final LinearLayoutManager layoutManager = (LinearLayoutManager) binding.list.getLayoutManager();
+		final int first = layoutManager == null ? 0 : Math.max(0, layoutManager.findFirstVisibleItemPosition());
+		final int last = Math.min(conversations.size(), first + Config.AVATAR_PREFETCH_COUNT);
+		if (first >= last) {
+			return;
+		}
+		final int size = (int) getResources().getDimension(R.dimen.avatar_on_conversation_overview);
+		activity.avatarService().prefetch(conversations.subList(first, last), size);
 	}
 
 	private void setScrollPosition(ScrollState scrollPosition) {
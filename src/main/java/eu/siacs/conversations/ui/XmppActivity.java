@@ -75,6 +75,7 @@ import eu.siacs.conversations.entities.Contact;
 import eu.siacs.conversations.entities.Conversation;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.entities.Presences;
+import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.services.AvatarService;
 import eu.siacs.conversations.services.BarcodeProvider;
 import eu.siacs.conversations.services.EmojiInitializationService;
@@ -935,7 +936,7 @@ public abstract class XmppActivity extends ActionBarActivity {
                         getResources(), null, task);
                 imageView.setImageDrawable(asyncDrawable);
                 try {
-                    task.execute(message);
+                    task.executeOnExecutor(FileBackend.getThumbnailExecutor(), message);
                 } catch (final RejectedExecutionException ignored) {
                     ignored.printStackTrace();
                 }
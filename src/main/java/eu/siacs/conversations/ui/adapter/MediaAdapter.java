@@ -29,6 +29,7 @@ import java.util.concurrent.RejectedExecutionException;
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
 import eu.siacs.conversations.databinding.MediaBinding;
+import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.services.ExportBackupService;
 import eu.siacs.conversations.ui.XmppActivity;
 import eu.siacs.conversations.ui.util.Attachment;
@@ -189,7 +190,7 @@ public class MediaAdapter extends RecyclerView.Adapter<MediaAdapter.MediaViewHol
                 final AsyncDrawable asyncDrawable = new AsyncDrawable(activity.getResources(), null, task);
                 imageView.setImageDrawable(asyncDrawable);
                 try {
-                    task.execute(attachment);
+                    task.executeOnExecutor(FileBackend.getThumbnailExecutor(), attachment);
                 } catch (final RejectedExecutionException ignored) {
                 }
             }
@@ -0,0 +1,411 @@
+package eu.siacs.conversations.utils;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.BadPaddingException;
+
+/**
+ * Body of a {@link BackupFileHeader#VERSION_CHUNKED} backup file. Rows are serialized as typed,
+ * length prefixed values and collected into chunks of roughly {@link #CHUNK_SIZE} bytes. Every
+ * chunk is deflated and sealed with AES-GCM on its own, which lets both directions spread the
+ * compression and crypto work over several cores while the file itself is written and read
+ * sequentially.
+ *
+ * <p>A chunk is framed as {@code int sealedLength, int plainLength, byte flags} followed by the
+ * sealed bytes. The nonce is the header IV with the chunk index xor-ed into its last eight bytes;
+ * index, plain length and flags are authenticated as associated data so chunks can neither be
+ * reordered nor dropped. The last chunk carries {@link #FLAG_LAST}, a file ending without it is
+ * considered truncated.
+ */
+public final class ChunkedBackup {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int CHUNK_OVERHEAD = 64 * 1024; // deflate may slightly grow incompressible data
+    private static final byte FLAG_LAST = 1;
+
+    private static final byte RECORD_TABLE = 1;
+    private static final byte RECORD_ROW = 2;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_DOUBLE = 2;
+    private static final byte TYPE_STRING = 3;
+    private static final byte TYPE_BLOB = 4;
+
+    private ChunkedBackup() {
+
+    }
+
+    private static ExecutorService createExecutor() {
+        final int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    private static int getMaxInFlight() {
+        return Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    private static AEADBlockCipher createCipher(final boolean encrypt, final byte[] key, final byte[] iv, final long index, final int plainLength, final byte flags) {
+        final byte[] nonce = Arrays.copyOf(iv, iv.length);
+        for (int i = 0; i < 8; ++i) {
+            nonce[nonce.length - 1 - i] ^= (byte) (index >>> (8 * i));
+        }
+        final byte[] associatedData = ByteBuffer.allocate(13).putLong(index).putInt(plainLength).put(flags).array();
+        final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(encrypt, new AEADParameters(new KeyParameter(key), 128, nonce, associatedData));
+        return cipher;
+    }
+
+    private static byte[] seal(final byte[] key, final byte[] iv, final long index, final byte flags, final byte[] plain) throws InvalidCipherTextException {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(plain.length / 2 + 64);
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                final int count = deflater.deflate(buffer);
+                compressed.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+        final byte[] input = compressed.toByteArray();
+        final AEADBlockCipher cipher = createCipher(true, key, iv, index, plain.length, flags);
+        final byte[] output = new byte[cipher.getOutputSize(input.length)];
+        int length = cipher.processBytes(input, 0, input.length, output, 0);
+        length += cipher.doFinal(output, length);
+        return length == output.length ? output : Arrays.copyOf(output, length);
+    }
+
+    private static byte[] open(final byte[] key, final byte[] iv, final long index, final byte flags, final int plainLength, final byte[] sealed) throws IOException {
+        final byte[] compressed;
+        try {
+            final AEADBlockCipher cipher = createCipher(false, key, iv, index, plainLength, flags);
+            final byte[] output = new byte[cipher.getOutputSize(sealed.length)];
+            int length = cipher.processBytes(sealed, 0, sealed.length, output, 0);
+            length += cipher.doFinal(output, length);
+            compressed = length == output.length ? output : Arrays.copyOf(output, length);
+        } catch (final InvalidCipherTextException e) {
+            throw new IOException(new BadPaddingException(e.getMessage()));
+        }
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            final byte[] plain = new byte[plainLength];
+            int offset = 0;
+            while (offset < plainLength && !inflater.finished()) {
+                final int count = inflater.inflate(plain, offset, plainLength - offset);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += count;
+            }
+            if (offset != plainLength) {
+                throw new IOException("chunk " + index + " inflated to " + offset + " bytes. expected " + plainLength);
+            }
+            return plain;
+        } catch (final DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public interface RowListener {
+        void onTable(String table, String[] columns);
+
+        void onRow(Object[] values);
+    }
+
+    private static class Chunk {
+        private final int plainLength;
+        private final byte flags;
+        private final byte[] sealed;
+
+        private Chunk(final int plainLength, final byte flags, final byte[] sealed) {
+            this.plainLength = plainLength;
+            this.flags = flags;
+            this.sealed = sealed;
+        }
+    }
+
+    public static class Writer implements Closeable {
+
+        private final DataOutputStream output;
+        private final byte[] key;
+        private final byte[] iv;
+        private final ExecutorService executor = createExecutor();
+        private final int maxInFlight = getMaxInFlight();
+        private final ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(CHUNK_SIZE + 8192);
+        private final DataOutputStream records = new DataOutputStream(buffer);
+        private int columnCount = -1;
+        private long index = 0;
+        private long payloadBytes = 0;
+
+        public Writer(final OutputStream output, final byte[] key, final byte[] iv) {
+            this.output = new DataOutputStream(output);
+            this.key = key;
+            this.iv = iv;
+        }
+
+        public void beginTable(final String table, final String[] columns) throws IOException {
+            records.writeByte(RECORD_TABLE);
+            records.writeUTF(table);
+            records.writeInt(columns.length);
+            for (final String column : columns) {
+                records.writeUTF(column);
+            }
+            this.columnCount = columns.length;
+            submitIfFull();
+        }
+
+        /**
+         * Appends a row to the current table. Values must be {@code null}, {@link Long}, {@link
+         * Double}, {@link String} or {@code byte[]} - the types a cursor can return.
+         */
+        public void writeRow(final Object[] values) throws IOException {
+            if (values.length != columnCount) {
+                throw new IllegalArgumentException("row has " + values.length + " values but table has " + columnCount + " columns");
+            }
+            records.writeByte(RECORD_ROW);
+            for (final Object value : values) {
+                if (value == null) {
+                    records.writeByte(TYPE_NULL);
+                } else if (value instanceof Long || value instanceof Integer) {
+                    records.writeByte(TYPE_LONG);
+                    records.writeLong(((Number) value).longValue());
+                } else if (value instanceof Double) {
+                    records.writeByte(TYPE_DOUBLE);
+                    records.writeDouble((Double) value);
+                } else if (value instanceof String) {
+                    final byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                    records.writeByte(TYPE_STRING);
+                    records.writeInt(bytes.length);
+                    records.write(bytes);
+                } else if (value instanceof byte[]) {
+                    final byte[] bytes = (byte[]) value;
+                    records.writeByte(TYPE_BLOB);
+                    records.writeInt(bytes.length);
+                    records.write(bytes);
+                } else {
+                    throw new IllegalArgumentException("unsupported value type " + value.getClass().getName());
+                }
+            }
+            submitIfFull();
+        }
+
+        public long getPayloadBytes() {
+            return payloadBytes;
+        }
+
+        private void submitIfFull() throws IOException {
+            if (buffer.size() >= CHUNK_SIZE) {
+                submit(false);
+            }
+        }
+
+        private void submit(final boolean last) throws IOException {
+            records.flush();
+            final byte[] plain = buffer.toByteArray();
+            buffer.reset();
+            if (plain.length > MAX_CHUNK_SIZE) {
+                throw new IOException("row exceeds maximum chunk size");
+            }
+            final long chunkIndex = index++;
+            final byte flags = last ? FLAG_LAST : 0;
+            payloadBytes += plain.length;
+            inFlight.add(executor.submit(() -> new Chunk(plain.length, flags, seal(key, iv, chunkIndex, flags, plain))));
+            while (inFlight.size() > maxInFlight || (last && !inFlight.isEmpty())) {
+                final Chunk chunk = await(inFlight.poll());
+                output.writeInt(chunk.sealed.length);
+                output.writeInt(chunk.plainLength);
+                output.writeByte(chunk.flags);
+                output.write(chunk.sealed);
+            }
+        }
+
+        /**
+         * Seals the last chunk and writes everything that is still in flight. Must only be called
+         * once every row has been written; a file that is closed without it lacks {@link
+         * #FLAG_LAST} and will be rejected as truncated.
+         */
+        public void finish() throws IOException {
+            submit(true);
+            output.flush();
+        }
+
+        /** Discards whatever is still in flight and closes the underlying stream. */
+        @Override
+        public void close() throws IOException {
+            try {
+                executor.shutdownNow();
+            } finally {
+                output.close();
+            }
+        }
+    }
+
+    public static class Reader {
+
+        private final DataInputStream input;
+        private final byte[] key;
+        private final byte[] iv;
+        private int columnCount = -1;
+        private long payloadBytes = 0;
+
+        public Reader(final InputStream input, final byte[] key, final byte[] iv) {
+            this.input = new DataInputStream(input);
+            this.key = key;
+            this.iv = iv;
+        }
+
+        /**
+         * Reads the entire body, decrypting and inflating chunks in parallel, and hands tables
+         * and rows to the listener in file order on the calling thread.
+         */
+        public void read(final RowListener listener) throws IOException {
+            final ExecutorService executor = createExecutor();
+            final int maxInFlight = getMaxInFlight();
+            final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+            try {
+                boolean last = false;
+                long index = 0;
+                while (!last) {
+                    final int sealedLength;
+                    final int plainLength;
+                    final byte flags;
+                    final byte[] sealed;
+                    try {
+                        sealedLength = input.readInt();
+                        plainLength = input.readInt();
+                        flags = input.readByte();
+                        if (sealedLength < 0 || sealedLength > MAX_CHUNK_SIZE + CHUNK_OVERHEAD || plainLength < 0 || plainLength > MAX_CHUNK_SIZE) {
+                            throw new IOException("invalid chunk size in backup file");
+                        }
+                        sealed = new byte[sealedLength];
+                        input.readFully(sealed);
+                    } catch (final EOFException e) {
+                        throw new IOException("backup file is truncated", e);
+                    }
+                    final long chunkIndex = index++;
+                    last = (flags & FLAG_LAST) != 0;
+                    inFlight.add(executor.submit(() -> open(key, iv, chunkIndex, flags, plainLength, sealed)));
+                    while (inFlight.size() > maxInFlight || (last && !inFlight.isEmpty())) {
+                        parse(await(inFlight.poll()), listener);
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        public long getPayloadBytes() {
+            return payloadBytes;
+        }
+
+        private void parse(final byte[] plain, final RowListener listener) throws IOException {
+            payloadBytes += plain.length;
+            final DataInputStream records = new DataInputStream(new ByteArrayInputStream(plain));
+            while (records.available() > 0) {
+                final byte type = records.readByte();
+                if (type == RECORD_TABLE) {
+                    final String table = records.readUTF();
+                    final int count = records.readInt();
+                    if (count < 0 || count > 1024) {
+                        throw new IOException("invalid column count " + count);
+                    }
+                    final String[] columns = new String[count];
+                    for (int i = 0; i < count; ++i) {
+                        columns[i] = records.readUTF();
+                    }
+                    this.columnCount = count;
+                    listener.onTable(table, columns);
+                } else if (type == RECORD_ROW) {
+                    if (columnCount < 0) {
+                        throw new IOException("row without table");
+                    }
+                    final Object[] values = new Object[columnCount];
+                    for (int i = 0; i < columnCount; ++i) {
+                        values[i] = readValue(records);
+                    }
+                    listener.onRow(values);
+                } else {
+                    throw new IOException("unknown record type " + type);
+                }
+            }
+        }
+
+        private static Object readValue(final DataInputStream records) throws IOException {
+            final byte type = records.readByte();
+            switch (type) {
+                case TYPE_NULL:
+                    return null;
+                case TYPE_LONG:
+                    return records.readLong();
+                case TYPE_DOUBLE:
+                    return records.readDouble();
+                case TYPE_STRING:
+                    return new String(readBytes(records), StandardCharsets.UTF_8);
+                case TYPE_BLOB:
+                    return readBytes(records);
+                default:
+                    throw new IOException("unknown value type " + type);
+            }
+        }
+
+        private static byte[] readBytes(final DataInputStream records) throws IOException {
+            final int length = records.readInt();
+            if (length < 0 || length > records.available()) {
+                throw new IOException("invalid value length " + length);
+            }
+            final byte[] bytes = new byte[length];
+            records.readFully(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package eu.siacs.conversations.utils;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Runs database tasks on separate lanes so that a long maintenance job or a backlog of writes
+ * does not delay reads the user is waiting for. Every lane has its own thread and executes its
+ * tasks in submission order; there is no ordering between lanes. Lanes only run in parallel as
+ * far as the database lets them: with write-ahead logging readers proceed next to a writer, but
+ * writes are still serialized.
+ *
+ * <p>Tasks submitted with a key are coalesced: while a task with the same key is still queued on
+ * that lane, further submissions are dropped. This is meant for tasks that persist the current
+ * state of an entity (for example updating a conversation) where running once is as good as
+ * running several times.
+ */
+public class DatabaseTaskScheduler {
+
+    public enum Lane {
+        INTERACTIVE(Process.THREAD_PRIORITY_DEFAULT),
+        WRITE(Process.THREAD_PRIORITY_DEFAULT),
+        MAINTENANCE(Process.THREAD_PRIORITY_BACKGROUND);
+
+        private final int threadPriority;
+
+        Lane(final int threadPriority) {
+            this.threadPriority = threadPriority;
+        }
+    }
+
+    private final EnumMap<Lane, LaneExecutor> lanes = new EnumMap<>(Lane.class);
+
+    public DatabaseTaskScheduler(final String name) {
+        for (final Lane lane : Lane.values()) {
+            lanes.put(lane, new LaneExecutor(name, lane));
+        }
+    }
+
+    public void execute(final Lane lane, final Runnable runnable) {
+        lanes.get(lane).submit(null, runnable);
+    }
+
+    public void execute(final Lane lane, final String key, final Runnable runnable) {
+        lanes.get(lane).submit(key, runnable);
+    }
+
+    public String getStatistics() {
+        final StringBuilder builder = new StringBuilder();
+        for (final LaneExecutor executor : lanes.values()) {
+            if (builder.length() > 0) {
+                builder.append("; ");
+            }
+            builder.append(executor.getStatistics());
+        }
+        return builder.toString();
+    }
+
+    private static class LaneExecutor implements Runnable {
+
+        private final String name;
+        private final Lane lane;
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        private final Map<String, Task> pending = new HashMap<>();
+        private Thread thread = null;
+
+        private long submitted = 0;
+        private long coalesced = 0;
+        private long executed = 0;
+        private int maxDepth = 0;
+        private long totalWait = 0;
+        private long maxWait = 0;
+
+        private LaneExecutor(final String name, final Lane lane) {
+            this.name = name + "-" + lane.name().toLowerCase(Locale.US);
+            this.lane = lane;
+        }
+
+        private synchronized void submit(final String key, final Runnable runnable) {
+            ++submitted;
+            if (key != null && pending.containsKey(key)) {
+                ++coalesced;
+                return;
+            }
+            final Task task = new Task(key, runnable);
+            tasks.offer(task);
+            if (key != null) {
+                pending.put(key, task);
+            }
+            maxDepth = Math.max(maxDepth, tasks.size());
+            if (thread == null) {
+                thread = new Thread(this, name);
+                thread.start();
+            } else {
+                notify();
+            }
+        }
+
+        private synchronized Task next() throws InterruptedException {
+            while (tasks.isEmpty()) {
+                wait();
+            }
+            final Task task = tasks.poll();
+            if (task.key != null) {
+                pending.remove(task.key);
+            }
+            final long wait = SystemClock.elapsedRealtime() - task.enqueued;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+            ++executed;
+            if (wait >= Config.DATABASE_TASK_WAIT_WARNING) {
+                Log.d(Config.LOGTAG, "task waited " + wait + "ms on '" + name + "' (" + tasks.size() + " remaining)");
+            }
+            return task;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(lane.threadPriority);
+            while (true) {
+                final Task task;
+                try {
+                    task = next();
+                } catch (final InterruptedException e) {
+                    Log.d(Config.LOGTAG, "database lane '" + name + "' was interrupted");
+                    continue;
+                }
+                try {
+                    task.runnable.run();
+                } catch (final RuntimeException e) {
+                    Log.e(Config.LOGTAG, "database task on '" + name + "' threw exception", e);
+                }
+            }
+        }
+
+        private synchronized String getStatistics() {
+            return String.format(
+                    Locale.US,
+                    "%s: depth=%d, max depth=%d, submitted=%d, coalesced=%d, avg wait=%dms, max wait=%dms",
+                    lane.name().toLowerCase(Locale.US),
+                    tasks.size(),
+                    maxDepth,
+                    submitted,
+                    coalesced,
+                    executed == 0 ? 0 : totalWait / executed,
+                    maxWait);
+        }
+    }
+
+    private static class Task {
+        private final String key;
+        private final Runnable runnable;
+        private final long enqueued = SystemClock.elapsedRealtime();
+
+        private Task(final String key, final Runnable runnable) {
+            this.key = key;
+            this.runnable = runnable;
+        }
+    }
+}
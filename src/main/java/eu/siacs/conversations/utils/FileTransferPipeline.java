@@ -0,0 +1,333 @@
+package eu.siacs.conversations.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.services.AbstractConnectionManager;
+
+/**
+ * Copies file transfers between the network and a file in two stages that run concurrently. The
+ * calling thread talks to the network while a second thread reads or writes the file, including
+ * the AES-GCM applied by {@link AbstractConnectionManager} and the SHA-1 over the transmitted
+ * bytes. A fixed number of large buffers circulates between the stages so memory use per transfer
+ * is bounded.
+ *
+ * <p>Unencrypted files are handed to the socket with {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)} if the socket is backed by a {@link SocketChannel}; the
+ * SHA-1 is computed from the file on the second stage in the meantime.
+ *
+ * <p>Jingle transfers are expected to run on {@link #TRANSFER_EXECUTOR}. The second stage uses a
+ * pool of its own so a stage can never wait for a transfer queued behind it. HTTP uploads run on
+ * whatever thread the HTTP client writes the request body from, so there is no bound on how many
+ * run at once; their second stage runs on an unbounded pool. Either way a transfer gives up if its
+ * second stage does not hand over a buffer for {@link Config#FILE_TRANSFER_STAGE_TIMEOUT} seconds.
+ */
+public final class FileTransferPipeline {
+
+    public static final ExecutorService TRANSFER_EXECUTOR = Executors.newFixedThreadPool(Config.FILE_TRANSFER_MAX_WORKERS);
+    private static final ExecutorService STAGE_EXECUTOR = Executors.newFixedThreadPool(Config.FILE_TRANSFER_MAX_WORKERS);
+    private static final ExecutorService UPLOAD_STAGE_EXECUTOR = Executors.newCachedThreadPool();
+
+    private static final int BUFFER_COUNT = 4;
+    private static final long POLL_INTERVAL = 100;
+    private static final Chunk END = new Chunk(0);
+
+    private FileTransferPipeline() {
+
+    }
+
+    public static byte[] send(final InputStream source, final Socket socket, final OutputStream destination, final AbstractConnectionManager.ProgressListener listener) throws IOException {
+        final SocketChannel channel = socket.getChannel();
+        if (source instanceof FileInputStream && channel != null) {
+            return transfer(((FileInputStream) source).getChannel(), channel, listener);
+        }
+        return pump(STAGE_EXECUTOR, "sent", source, destination, -1, true, sha1(), listener);
+    }
+
+    public static byte[] receive(final InputStream source, final OutputStream destination, final long expected, final AbstractConnectionManager.ProgressListener listener) throws IOException {
+        return pump(STAGE_EXECUTOR, "received", source, destination, expected, false, sha1(), listener);
+    }
+
+    /**
+     * Writes the entire source to the destination without hashing it. The destination is flushed
+     * once at the end; buffering in between is left to the destination.
+     */
+    public static void upload(final String description, final InputStream source, final OutputStream destination, final AbstractConnectionManager.ProgressListener listener) throws IOException {
+        pump(UPLOAD_STAGE_EXECUTOR, description, source, destination, -1, true, null, listener);
+    }
+
+    private static byte[] transfer(final FileChannel file, final SocketChannel socket, final AbstractConnectionManager.ProgressListener listener) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        final long cpuStart = SystemClock.currentThreadTimeMillis();
+        final long offset = file.position();
+        final long size = file.size() - offset;
+        final MessageDigest digest = sha1();
+        final Future<Long> stage = STAGE_EXECUTOR.submit(() -> {
+            final long stageCpuStart = SystemClock.currentThreadTimeMillis();
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(Config.FILE_TRANSFER_BUFFER_SIZE);
+            long position = offset;
+            while (position < offset + size) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+                buffer.clear();
+                final int count = file.read(buffer, position);
+                if (count < 0) {
+                    throw new EOFException("file shrank while sending");
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += count;
+            }
+            return SystemClock.currentThreadTimeMillis() - stageCpuStart;
+        });
+        final ThrottledProgress progress = new ThrottledProgress(listener);
+        try {
+            long transmitted = 0;
+            while (transmitted < size) {
+                final long count = file.transferTo(offset + transmitted, Math.min(Config.FILE_TRANSFER_BUFFER_SIZE, size - transmitted), socket);
+                if (count == 0) {
+                    // transferTo() signals the end of the file with 0 rather than -1
+                    if (offset + transmitted >= file.size()) {
+                        throw new EOFException("file shrank while sending");
+                    }
+                    if (stage.isDone()) {
+                        awaitStage(stage);
+                    }
+                }
+                transmitted += count;
+                progress.update(transmitted);
+            }
+            progress.finish(transmitted);
+            final long stageCpu = awaitStage(stage);
+            log("sent (zero copy)", transmitted, start, SystemClock.currentThreadTimeMillis() - cpuStart + stageCpu);
+            return digest.digest();
+        } catch (final IOException e) {
+            stage.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * @param executor runs the second stage
+     * @param expected number of bytes to read from the source or -1 to read until the end of it
+     * @param stageReads true if the second stage reads the source (the file) and the calling
+     *     thread writes to the destination (the network); false for the opposite direction
+     * @param digest updated on the second stage with every byte transmitted; may be null
+     * @return the digest over the transmitted bytes or null if no digest was given
+     */
+    private static byte[] pump(final ExecutorService executor, final String direction, final InputStream source, final OutputStream destination, final long expected, final boolean stageReads, final MessageDigest digest, final AbstractConnectionManager.ProgressListener listener) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        final long cpuStart = SystemClock.currentThreadTimeMillis();
+        final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        // one extra slot for END so that add() never fails
+        final BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+        for (int i = 0; i < BUFFER_COUNT; ++i) {
+            free.add(new Chunk(Config.FILE_TRANSFER_BUFFER_SIZE));
+        }
+        final Future<Long> stage = executor.submit(() -> {
+            final long stageCpuStart = SystemClock.currentThreadTimeMillis();
+            if (stageReads) {
+                produce(source, expected, digest, free, full, null, null);
+            } else {
+                consume(destination, digest, free, full, null, null);
+            }
+            return SystemClock.currentThreadTimeMillis() - stageCpuStart;
+        });
+        final ThrottledProgress progress = new ThrottledProgress(listener);
+        try {
+            final long transmitted;
+            if (stageReads) {
+                transmitted = consume(destination, null, free, full, stage, progress);
+            } else {
+                transmitted = produce(source, expected, null, free, full, stage, progress);
+            }
+            final long cpu = SystemClock.currentThreadTimeMillis() - cpuStart;
+            final long stageCpu = awaitStage(stage);
+            progress.finish(transmitted);
+            log(direction, transmitted, start, cpu + stageCpu);
+            return digest == null ? null : digest.digest();
+        } catch (final IOException e) {
+            stage.cancel(true);
+            throw e;
+        }
+    }
+
+    private static long produce(final InputStream source, final long expected, final MessageDigest digest, final BlockingQueue<Chunk> free, final BlockingQueue<Chunk> full, final Future<?> other, final ThrottledProgress progress) throws IOException {
+        long total = 0;
+        while (expected < 0 || total < expected) {
+            final Chunk chunk = take(free, other);
+            final int max = expected < 0 ? chunk.data.length : (int) Math.min(chunk.data.length, expected - total);
+            final int count = fill(source, chunk.data, max);
+            if (count > 0) {
+                chunk.length = count;
+                if (digest != null) {
+                    digest.update(chunk.data, 0, count);
+                }
+                total += count;
+                full.add(chunk);
+                if (progress != null) {
+                    progress.update(total);
+                }
+            }
+            if (count < max) {
+                if (expected >= 0) {
+                    throw new EOFException("file ended prematurely with " + (expected - total) + " bytes remaining");
+                }
+                break;
+            }
+        }
+        full.add(END);
+        return total;
+    }
+
+    private static long consume(final OutputStream destination, final MessageDigest digest, final BlockingQueue<Chunk> free, final BlockingQueue<Chunk> full, final Future<?> other, final ThrottledProgress progress) throws IOException {
+        long total = 0;
+        Chunk chunk;
+        while ((chunk = take(full, other)) != END) {
+            destination.write(chunk.data, 0, chunk.length);
+            if (digest != null) {
+                digest.update(chunk.data, 0, chunk.length);
+            }
+            total += chunk.length;
+            free.add(chunk);
+            if (progress != null) {
+                progress.update(total);
+            }
+        }
+        destination.flush();
+        return total;
+    }
+
+    private static int fill(final InputStream source, final byte[] buffer, final int max) throws IOException {
+        int offset = 0;
+        while (offset < max) {
+            final int count = source.read(buffer, offset, max - offset);
+            if (count < 0) {
+                break;
+            }
+            offset += count;
+        }
+        return offset;
+    }
+
+    /**
+     * Waits for the next buffer. The calling thread passes the future of the second stage so a
+     * failure over there, or a stage that never got a thread, does not leave it waiting forever;
+     * the second stage itself gets interrupted instead.
+     */
+    private static Chunk take(final BlockingQueue<Chunk> queue, final Future<?> other) throws IOException {
+        final long deadline = SystemClock.elapsedRealtime() + Config.FILE_TRANSFER_STAGE_TIMEOUT * 1000L;
+        try {
+            while (true) {
+                final Chunk chunk = other == null ? queue.take() : queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (chunk != null) {
+                    return chunk;
+                }
+                if (other.isDone()) {
+                    final Chunk last = queue.poll();
+                    if (last != null) {
+                        return last;
+                    }
+                    awaitStage(other);
+                    throw new IOException("transfer stage ended unexpectedly");
+                }
+                if (SystemClock.elapsedRealtime() > deadline) {
+                    throw new IOException("transfer stage did not hand over a buffer in time");
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static long awaitStage(final Future<?> stage) throws IOException {
+        try {
+            final Object result = stage.get();
+            return result instanceof Long ? (Long) result : 0;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void log(final String direction, final long bytes, final long start, final long cpu) {
+        final long duration = Math.max(1, SystemClock.elapsedRealtime() - start);
+        final double megabytes = bytes / (1024.0 * 1024.0);
+        Log.d(Config.LOGTAG, String.format(
+                Locale.US,
+                "%s %d bytes in %dms (%.2f MB/s, %.1fms cpu/MB)",
+                direction,
+                bytes,
+                duration,
+                megabytes * 1000 / duration,
+                megabytes == 0 ? 0.0 : cpu / megabytes));
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final class Chunk {
+        private final byte[] data;
+        private int length;
+
+        private Chunk(final int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    private static final class ThrottledProgress {
+        private final AbstractConnectionManager.ProgressListener listener;
+        private long lastUpdate = 0;
+
+        private ThrottledProgress(final AbstractConnectionManager.ProgressListener listener) {
+            this.listener = listener;
+        }
+
+        private void update(final long transmitted) {
+            final long now = SystemClock.elapsedRealtime();
+            if (now - lastUpdate >= Config.FILE_TRANSFER_PROGRESS_INTERVAL) {
+                lastUpdate = now;
+                listener.onProgress(transmitted);
+            }
+        }
+
+        private void finish(final long transmitted) {
+            listener.onProgress(transmitted);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package eu.siacs.conversations.utils;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Hashed timing wheel: a single thread that runs tasks once their deadline has passed. Scheduling
+ * and cancelling are O(1) and neither touches the wheel itself, which makes it cheap enough to give
+ * every outgoing request its own deadline. Deadlines are rounded up to the next tick.
+ *
+ * <p>Tasks run on the wheel thread and must return quickly; anything that may block has to be
+ * handed off to another executor.
+ */
+public final class TimingWheel {
+
+    private final String name;
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] buckets;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    private Thread thread;
+    private long startNanos;
+    private long tick = 0;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(final String name, final long tickDuration, final TimeUnit unit, final int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheel size must be a power of two");
+        }
+        this.name = name;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.buckets = new ArrayDeque[wheelSize];
+        for (int i = 0; i < wheelSize; ++i) {
+            this.buckets[i] = new ArrayDeque<>();
+        }
+        this.mask = wheelSize - 1;
+    }
+
+    public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        start();
+        final Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private synchronized void start() {
+        if (thread == null) {
+            startNanos = System.nanoTime();
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            final long deadline = startNanos + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            while (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (final InterruptedException e) {
+                    // the wheel lives as long as the process does
+                }
+                sleep = deadline - System.nanoTime();
+            }
+            transferPending();
+            expire(buckets[(int) (tick & mask)]);
+            ++tick;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            final long ticks = Math.max(tick, (timeout.deadline - startNanos + tickNanos - 1) / tickNanos);
+            timeout.rounds = (ticks - tick) / buckets.length;
+            buckets[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(final ArrayDeque<Timeout> bucket) {
+        final Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            final Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+            } else if (timeout.rounds > 0) {
+                --timeout.rounds;
+            } else {
+                iterator.remove();
+                timeout.expire();
+            }
+        }
+    }
+
+    public static final class Timeout implements Cancellable {
+
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled = false;
+        private long rounds;
+
+        private Timeout(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        private void expire() {
+            try {
+                task.run();
+            } catch (final RuntimeException e) {
+                Log.d(Config.LOGTAG, "timeout task threw exception", e);
+            }
+        }
+    }
+}
@@ -19,6 +19,43 @@ public class XmlHelper {
         return content;
     }
 
+    /**
+     * Single pass equivalent of {@link #encodeEntities(String)} that appends to an existing
+     * builder instead of creating intermediate strings.
+     */
+    public static void appendEncodedEntities(final StringBuilder builder, final String content) {
+        final int length = content.length();
+        for (int i = 0; i < length; ++i) {
+            final char c = content.charAt(i);
+            switch (c) {
+                case '&':
+                    builder.append("&amp;");
+                    break;
+                case '<':
+                    builder.append("&lt;");
+                    break;
+                case '>':
+                    builder.append("&gt;");
+                    break;
+                case '"':
+                    builder.append("&quot;");
+                    break;
+                case '\'':
+                    builder.append("&apos;");
+                    break;
+                case '\n':
+                case '\t':
+                case '\r':
+                    builder.append(c);
+                    break;
+                default:
+                    if (c >= 0x20 && c != 0x7f) {
+                        builder.append(c);
+                    }
+            }
+        }
+    }
+
     public static String printElementNames(final Element element) {
         final List<String> features =
                 element == null
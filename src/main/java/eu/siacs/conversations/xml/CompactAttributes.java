@@ -0,0 +1,174 @@
+package eu.siacs.conversations.xml;
+
+import androidx.annotation.NonNull;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Attribute map backed by two parallel arrays. Stanzas rarely carry more than a handful of
+ * attributes so a linear scan beats hashing and avoids the per-entry allocations of {@link
+ * java.util.Hashtable}. Insertion order is preserved. This class is not synchronized.
+ */
+final class CompactAttributes extends AbstractMap<String, String> {
+
+    private static final int DEFAULT_CAPACITY = 4;
+
+    private String[] keys;
+    private String[] values;
+    private int size = 0;
+    private int modCount = 0;
+
+    CompactAttributes() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    CompactAttributes(final int capacity) {
+        final int initial = Math.max(1, capacity);
+        this.keys = new String[initial];
+        this.values = new String[initial];
+    }
+
+    private int indexOf(final Object key) {
+        if (key == null) {
+            return -1;
+        }
+        for (int i = 0; i < size; ++i) {
+            final String candidate = keys[i];
+            if (candidate == key || candidate.equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(final Object key) {
+        final int index = indexOf(key);
+        return index >= 0 ? values[index] : null;
+    }
+
+    @Override
+    public String put(final String key, final String value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        final int index = indexOf(key);
+        if (index >= 0) {
+            final String previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+        if (size == keys.length) {
+            final int capacity = keys.length * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        keys[size] = key;
+        values[size] = value;
+        ++size;
+        ++modCount;
+        return null;
+    }
+
+    @Override
+    public String remove(final Object key) {
+        final int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        final String previous = values[index];
+        removeAt(index);
+        return previous;
+    }
+
+    private void removeAt(final int index) {
+        final int tail = size - index - 1;
+        if (tail > 0) {
+            System.arraycopy(keys, index + 1, keys, index, tail);
+            System.arraycopy(values, index + 1, values, index, tail);
+        }
+        --size;
+        keys[size] = null;
+        values[size] = null;
+        ++modCount;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        ++modCount;
+    }
+
+    @NonNull
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @NonNull
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private final class EntryIterator implements Iterator<Entry<String, String>> {
+
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new SimpleImmutableEntry<>(keys[last], values[last]);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            if (expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+}
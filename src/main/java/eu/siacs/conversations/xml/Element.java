@@ -5,6 +5,7 @@ import org.jetbrains.annotations.NotNull;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 
 import eu.siacs.conversations.utils.XmlHelper;
 import eu.siacs.conversations.xmpp.InvalidJid;
@@ -13,7 +14,7 @@ import eu.siacs.conversations.xmpp.stanzas.MessagePacket;
 
 public class Element {
     private final String name;
-    private Hashtable<String, String> attributes = new Hashtable<>();
+    private Map<String, String> attributes = new Hashtable<>();
     private String content;
     protected List<Element> children = new ArrayList<>();
 
@@ -137,7 +138,7 @@ public class Element {
         this.attributes.remove(name);
     }
 
-    public Element setAttributes(Hashtable<String, String> attributes) {
+    public Element setAttributes(Map<String, String> attributes) {
         this.attributes = attributes;
         return this;
     }
@@ -162,32 +163,41 @@ public class Element {
         return null;
     }
 
-    public Hashtable<String, String> getAttributes() {
+    public Map<String, String> getAttributes() {
         return this.attributes;
     }
 
     @NotNull
     public String toString() {
         final StringBuilder elementOutput = new StringBuilder();
-        if ((content == null) && (children.size() == 0)) {
-            final Tag emptyTag = Tag.empty(name);
-            emptyTag.setAttributes(this.attributes);
-            elementOutput.append(emptyTag);
+        appendTo(elementOutput);
+        return elementOutput.toString();
+    }
+
+    /**
+     * Serializes this element and its children into the given builder without creating
+     * intermediate {@link Tag} objects or strings.
+     */
+    public void appendTo(final StringBuilder output) {
+        output.append('<').append(name);
+        for (final Map.Entry<String, String> entry : attributes.entrySet()) {
+            output.append(' ').append(entry.getKey()).append("=\"");
+            XmlHelper.appendEncodedEntities(output, entry.getValue());
+            output.append('"');
+        }
+        if (content == null && children.isEmpty()) {
+            output.append("/>");
+            return;
+        }
+        output.append('>');
+        if (content != null) {
+            XmlHelper.appendEncodedEntities(output, content);
         } else {
-            final Tag startTag = Tag.start(name);
-            startTag.setAttributes(this.attributes);
-            elementOutput.append(startTag);
-            if (content != null) {
-                elementOutput.append(XmlHelper.encodeEntities(content));
-            } else {
-                for (final Element child : children) {
-                    elementOutput.append(child.toString());
-                }
+            for (final Element child : children) {
+                child.appendTo(output);
             }
-            final Tag endTag = Tag.end(name);
-            elementOutput.append(endTag);
         }
-        return elementOutput.toString();
+        output.append("</").append(name).append('>');
     }
 
     public final String getName() {
@@ -1,6 +1,7 @@
 package eu.siacs.conversations.xml;
 
 public final class Namespace {
+    public static final String JABBER_CLIENT = "jabber:client";
     public static final String DISCO_ITEMS = "http://jabber.org/protocol/disco#items";
     public static final String DISCO_INFO = "http://jabber.org/protocol/disco#info";
     public static final String EXTERNAL_SERVICE_DISCOVERY = "urn:xmpp:extdisco:2";
@@ -62,5 +63,15 @@ public final class Namespace {
     public static final String INVITE = "urn:xmpp:invite";
     public static final String PARS = "urn:xmpp:pars:0";
     public static final String EASY_ONBOARDING_INVITE = "urn:xmpp:invite#invite";
+    public static final String HINTS = "urn:xmpp:hints";
+    public static final String DELIVERY_RECEIPTS = "urn:xmpp:receipts";
+    public static final String CHAT_MARKERS = "urn:xmpp:chat-markers:0";
+    public static final String CHAT_STATES = "http://jabber.org/protocol/chatstates";
+    public static final String DELAY = "urn:xmpp:delay";
+    public static final String FORWARD = "urn:xmpp:forward:0";
+    public static final String MAM = "urn:xmpp:mam:2";
+    public static final String MUC = "http://jabber.org/protocol/muc";
+    public static final String CAPS = "http://jabber.org/protocol/caps";
+    public static final String LAST_MESSAGE_CORRECTION = "urn:xmpp:message-correct:0";
     public static final String OMEMO_DTLS_SRTP_VERIFICATION = "http://gultsch.de/xmpp/drafts/omemo/dlts-srtp-verification";
 }
@@ -2,7 +2,7 @@ package eu.siacs.conversations.xml;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Hashtable;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -16,7 +16,7 @@ public class Tag {
 
     protected int type;
     protected String name;
-    protected Hashtable<String, String> attributes = new Hashtable<String, String>();
+    protected Map<String, String> attributes = new CompactAttributes();
 
     protected Tag(int type, String name) {
         this.type = type;
@@ -52,7 +52,7 @@ public class Tag {
         return this;
     }
 
-    public void setAttributes(final Hashtable<String, String> attributes) {
+    public void setAttributes(final Map<String, String> attributes) {
         this.attributes = attributes;
     }
 
@@ -101,7 +101,7 @@ public class Tag {
         return tagOutput.toString();
     }
 
-    public Hashtable<String, String> getAttributes() {
+    public Map<String, String> getAttributes() {
         return this.attributes;
     }
 }
@@ -2,23 +2,41 @@ package eu.siacs.conversations.xml;
 
 import android.util.Log;
 
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.xmpp.stanzas.AbstractStanza;
 
 public class TagWriter {
 
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
     private OutputStreamWriter outputStream;
+    private CountingOutputStream countingOutputStream;
     private boolean finished = false;
     private final LinkedBlockingQueue<AbstractStanza> writeQueue = new LinkedBlockingQueue<AbstractStanza>();
     private CountDownLatch stanzaWriterCountDownLatch = null;
 
+    private final int maxBatchBytes;
+    private final long maxBatchDelay;
+
+    private final AtomicLong flushCount = new AtomicLong(0);
+    private final AtomicLong stanzaCount = new AtomicLong(0);
+    private final AtomicLong byteCount = new AtomicLong(0);
+
+    private StringBuilder stanzaBuffer = new StringBuilder(1024);
+    private char[] charBuffer = new char[1024];
+
     private final Thread asyncStanzaWriter = new Thread() {
 
         @Override
@@ -29,11 +47,7 @@ public class TagWriter {
                     break;
                 }
                 try {
-                    AbstractStanza output = writeQueue.take();
-                    outputStream.write(output.toString());
-                    if (writeQueue.size() == 0) {
-                        outputStream.flush();
-                    }
+                    writeBatch(writeQueue.take());
                 } catch (Exception e) {
                     break;
                 }
@@ -44,13 +58,73 @@ public class TagWriter {
     };
 
     public TagWriter() {
+        this(Config.STANZA_WRITER_MAX_BATCH_BYTES, Config.STANZA_WRITER_MAX_BATCH_DELAY);
+    }
+
+    public TagWriter(final int maxBatchBytes, final long maxBatchDelay) {
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchDelay = maxBatchDelay;
+    }
+
+    /**
+     * Writes the given stanza and everything that is queued up behind it (bounded by {@link
+     * #maxBatchBytes}) before flushing once. If more than one stanza was pending we assume a
+     * burst and wait up to {@link #maxBatchDelay} milliseconds for stragglers so they end up in
+     * the same TLS record. A lone stanza is flushed right away.
+     */
+    private void writeBatch(final AbstractStanza first) throws IOException, InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBatchDelay);
+        final long bytesBefore = countingOutputStream.getCount();
+        int stanzas = 0;
+        long pending = 0;
+        AbstractStanza stanza = first;
+        while (stanza != null) {
+            pending += write(stanza);
+            ++stanzas;
+            if (pending >= maxBatchBytes) {
+                break;
+            }
+            stanza = writeQueue.poll();
+            if (stanza == null && stanzas > 1 && !finished) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining > 0) {
+                    stanza = writeQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+        outputStream.flush();
+        flushCount.incrementAndGet();
+        stanzaCount.addAndGet(stanzas);
+        byteCount.addAndGet(countingOutputStream.getCount() - bytesBefore);
+        trimBuffers();
+    }
+
+    private int write(final AbstractStanza stanza) throws IOException {
+        final StringBuilder buffer = this.stanzaBuffer;
+        buffer.setLength(0);
+        stanza.appendTo(buffer);
+        final int length = buffer.length();
+        if (charBuffer.length < length) {
+            charBuffer = new char[Math.max(length, charBuffer.length * 2)];
+        }
+        buffer.getChars(0, length, charBuffer, 0);
+        outputStream.write(charBuffer, 0, length);
+        return length;
+    }
+
+    private void trimBuffers() {
+        if (charBuffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            charBuffer = new char[1024];
+            stanzaBuffer = new StringBuilder(1024);
+        }
     }
 
     public synchronized void setOutputStream(OutputStream out) throws IOException {
         if (out == null) {
             throw new IOException();
         }
-        this.outputStream = new OutputStreamWriter(out);
+        this.countingOutputStream = new CountingOutputStream(out);
+        this.outputStream = new OutputStreamWriter(new BufferedOutputStream(countingOutputStream, maxBatchBytes));
     }
 
     public void beginDocument() throws IOException {
@@ -108,6 +182,31 @@ public class TagWriter {
         return outputStream != null;
     }
 
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public long getStanzaCount() {
+        return stanzaCount.get();
+    }
+
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    public String getStatistics() {
+        final long flushes = getFlushCount();
+        final long stanzas = getStanzaCount();
+        final long bytes = getByteCount();
+        return String.format(
+                Locale.US,
+                "stanzas=%d, flushes=%d, stanzas/flush=%.2f, bytes/flush=%d",
+                stanzas,
+                flushes,
+                flushes == 0 ? 0.0 : (double) stanzas / flushes,
+                flushes == 0 ? 0 : bytes / flushes);
+    }
+
     public synchronized void forceClose() {
         asyncStanzaWriter.interrupt();
         if (outputStream != null) {
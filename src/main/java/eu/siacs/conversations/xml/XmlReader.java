@@ -3,6 +3,8 @@ package eu.siacs.conversations.xml;
 import android.util.Log;
 import android.util.Xml;
 
+import com.google.common.collect.ImmutableMap;
+
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -10,10 +12,52 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Map;
 
 import eu.siacs.conversations.Config;
+import eu.siacs.conversations.crypto.axolotl.AxolotlService;
 
 public class XmlReader implements Closeable {
+
+	private static final String XML_LANG = "xml:lang";
+
+	/**
+	 * Canonical instances for the element names, attribute names and namespaces we see on nearly
+	 * every stanza. Parsed trees reference these instead of holding on to the parser's copies.
+	 */
+	private static final ImmutableMap<String, String> NAMES = canonical(
+			"stream", "message", "presence", "iq", "body", "subject", "thread", "error", "x", "c",
+			"query", "item", "result", "forwarded", "delay", "stanza-id", "origin-id", "received",
+			"displayed", "request", "markable", "active", "composing", "paused", "inactive", "gone",
+			"show", "status", "priority", "encrypted", "header", "key", "iv", "payload", "store",
+			"no-store", "replace", "fin", "set", "first", "last", "count", "a", "r",
+			"to", "from", "id", "type", "xmlns", "by", "stamp", "node", "ver", "hash", "jid",
+			"role", "affiliation", "nick", "code", "queryid", "sid", "rid", "h",
+			Namespace.JABBER_CLIENT,
+			Namespace.STREAM_MANAGEMENT,
+			Namespace.HINTS,
+			Namespace.DELIVERY_RECEIPTS,
+			Namespace.CHAT_MARKERS,
+			Namespace.CHAT_STATES,
+			Namespace.DELAY,
+			Namespace.FORWARD,
+			Namespace.MAM,
+			Namespace.MUC,
+			Namespace.MUC_USER,
+			Namespace.CAPS,
+			Namespace.STANZA_IDS,
+			Namespace.CARBONS,
+			Namespace.LAST_MESSAGE_CORRECTION,
+			Namespace.OOB,
+			Namespace.NICK,
+			Namespace.IDLE,
+			Namespace.PUBSUB,
+			Namespace.DISCO_INFO,
+			Namespace.DISCO_ITEMS,
+			Namespace.PING,
+			Namespace.ROSTER,
+			AxolotlService.PEP_PREFIX);
+
 	private final XmlPullParser parser;
 	private InputStream is;
 
@@ -58,24 +102,11 @@ public class XmlReader implements Closeable {
 		try {
 			while (this.is != null && parser.next() != XmlPullParser.END_DOCUMENT) {
 				if (parser.getEventType() == XmlPullParser.START_TAG) {
-					Tag tag = Tag.start(parser.getName());
-					final String xmlns = parser.getNamespace();
-					for (int i = 0; i < parser.getAttributeCount(); ++i) {
-						final String prefix = parser.getAttributePrefix(i);
-						String name;
-						if (prefix != null && !prefix.isEmpty()) {
-							name = prefix+":"+parser.getAttributeName(i);
-						} else {
-							name = parser.getAttributeName(i);
-						}
-						tag.setAttribute(name,parser.getAttributeValue(i));
-					}
-					if (xmlns != null) {
-						tag.setAttribute("xmlns", xmlns);
-					}
+					final Tag tag = Tag.start(intern(parser.getName()));
+					readAttributes(tag.getAttributes());
 					return tag;
 				} else if (parser.getEventType() == XmlPullParser.END_TAG) {
-					return Tag.end(parser.getName());
+					return Tag.end(intern(parser.getName()));
 				} else if (parser.getEventType() == XmlPullParser.TEXT) {
 					return Tag.no(parser.getText());
 				}
@@ -88,29 +119,74 @@ public class XmlReader implements Closeable {
 	}
 
 	public Element readElement(Tag currentTag) throws IOException {
-		Element element = new Element(currentTag.getName());
+		final Element element = new Element(currentTag.getName());
 		element.setAttributes(currentTag.getAttributes());
-		Tag nextTag = this.readTag();
-		if (nextTag == null) {
-			throw new IOException("interrupted mid tag");
-		}
-		if (nextTag.isNo()) {
-			element.setContent(nextTag.getName());
-			nextTag = this.readTag();
-			if (nextTag == null) {
-				throw new IOException("interrupted mid tag");
+		readContent(element);
+		return element;
+	}
+
+	/**
+	 * Reads the children and text of an element whose start tag has just been consumed (for
+	 * example via {@link #readTag()}) up to and including the matching end tag. Child elements are
+	 * built straight from the pull parser events without going through intermediate {@link Tag}
+	 * objects.
+	 */
+	public void readContent(final Element element) throws IOException {
+		try {
+			boolean first = true;
+			int event;
+			while (this.is != null && (event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+				if (event == XmlPullParser.START_TAG) {
+					final Element child = new Element(intern(parser.getName()));
+					final Map<String, String> attributes = new CompactAttributes(parser.getAttributeCount() + 1);
+					readAttributes(attributes);
+					child.setAttributes(attributes);
+					readContent(child);
+					element.addChild(child);
+				} else if (event == XmlPullParser.END_TAG) {
+					return;
+				} else if (event == XmlPullParser.TEXT && first) {
+					element.setContent(parser.getText());
+				}
+				first = false;
 			}
+		} catch (final IOException e) {
+			throw e;
+		} catch (final Throwable throwable) {
+			throw new IOException("xml parser mishandled "+throwable.getClass().getSimpleName()+"("+throwable.getMessage()+")", throwable);
 		}
-		while (!nextTag.isEnd(element.getName())) {
-			if (!nextTag.isNo()) {
-				Element child = this.readElement(nextTag);
-				element.addChild(child);
-			}
-			nextTag = this.readTag();
-			if (nextTag == null) {
-				throw new IOException("interrupted mid tag");
+		throw new IOException("interrupted mid tag");
+	}
+
+	private void readAttributes(final Map<String, String> attributes) {
+		final int count = parser.getAttributeCount();
+		for (int i = 0; i < count; ++i) {
+			final String prefix = parser.getAttributePrefix(i);
+			final String name = parser.getAttributeName(i);
+			if (prefix == null || prefix.isEmpty()) {
+				attributes.put(intern(name), parser.getAttributeValue(i));
+			} else if ("xml".equals(prefix) && "lang".equals(name)) {
+				attributes.put(XML_LANG, parser.getAttributeValue(i));
+			} else {
+				attributes.put(prefix + ":" + name, parser.getAttributeValue(i));
 			}
 		}
-		return element;
+		final String xmlns = parser.getNamespace();
+		if (xmlns != null) {
+			attributes.put("xmlns", intern(xmlns));
+		}
+	}
+
+	private static ImmutableMap<String, String> canonical(final String... names) {
+		final ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+		for (final String name : names) {
+			builder.put(name, name);
+		}
+		return builder.build();
+	}
+
+	private static String intern(final String name) {
+		final String canonical = NAMES.get(name);
+		return canonical == null ? name : canonical;
 	}
 }
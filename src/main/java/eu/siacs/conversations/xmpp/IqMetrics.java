@@ -0,0 +1,107 @@
+package eu.siacs.conversations.xmpp;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.siacs.conversations.xml.Element;
+import eu.siacs.conversations.xmpp.stanzas.IqPacket;
+
+/**
+ * Response times of outgoing iq requests, grouped by the namespace of the request payload. Only
+ * the most recent responses of every namespace are kept for the percentiles.
+ */
+public final class IqMetrics {
+
+    private static final int SAMPLES = 128;
+
+    private static final AtomicInteger OUTSTANDING = new AtomicInteger(0);
+    private static final Map<String, Responses> NAMESPACES = new TreeMap<>();
+
+    private IqMetrics() {
+
+    }
+
+    static String namespaceOf(final IqPacket packet) {
+        for (final Element child : packet.getChildren()) {
+            final String namespace = child.getNamespace();
+            if (namespace != null) {
+                return namespace;
+            }
+        }
+        return "none";
+    }
+
+    static void onSent() {
+        OUTSTANDING.incrementAndGet();
+    }
+
+    static void onResponse(final String namespace, final long millis) {
+        OUTSTANDING.decrementAndGet();
+        synchronized (NAMESPACES) {
+            get(namespace).add(millis);
+        }
+    }
+
+    static void onTimeout(final String namespace) {
+        OUTSTANDING.decrementAndGet();
+        synchronized (NAMESPACES) {
+            ++get(namespace).timeouts;
+        }
+    }
+
+    static void onCleared(final int count) {
+        OUTSTANDING.addAndGet(-count);
+    }
+
+    private static Responses get(final String namespace) {
+        Responses entry = NAMESPACES.get(namespace);
+        if (entry == null) {
+            entry = new Responses();
+            NAMESPACES.put(namespace, entry);
+        }
+        return entry;
+    }
+
+    public static String getStatistics() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("outstanding=").append(OUTSTANDING.get());
+        synchronized (NAMESPACES) {
+            for (final Map.Entry<String, Responses> entry : NAMESPACES.entrySet()) {
+                builder.append(", ").append(entry.getKey()).append(entry.getValue().toString());
+            }
+        }
+        return builder.toString();
+    }
+
+    private static class Responses {
+        private final long[] samples = new long[SAMPLES];
+        private long responses = 0;
+        private long timeouts = 0;
+
+        private void add(final long millis) {
+            samples[(int) (responses % SAMPLES)] = millis;
+            ++responses;
+        }
+
+        @Override
+        public String toString() {
+            final int count = (int) Math.min(responses, SAMPLES);
+            if (count == 0) {
+                return String.format(Locale.US, "(responses=0, timeouts=%d)", timeouts);
+            }
+            final long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return String.format(
+                    Locale.US,
+                    "(responses=%d, timeouts=%d, p50=%dms, p90=%dms, p99=%dms)",
+                    responses,
+                    timeouts,
+                    sorted[(count - 1) / 2],
+                    sorted[(count - 1) * 9 / 10],
+                    sorted[(count - 1) * 99 / 100]);
+        }
+    }
+}
@@ -117,6 +117,9 @@ public interface Jid extends Comparable<Jid>, Serializable, CharSequence {
 
     static Jid ofEscaped(CharSequence jid) {
         try {
+            if (jid instanceof String) {
+                return JidCache.ofEscaped((String) jid);
+            }
             return new WrappedJid(JidCreate.from(jid));
         } catch (final XmppStringprepException e) {
             throw new IllegalArgumentException(e);
@@ -0,0 +1,78 @@
+package eu.siacs.conversations.xmpp;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.jxmpp.jid.impl.JidCreate;
+import org.jxmpp.stringprep.XmppStringprepException;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Canonical {@link WrappedJid} instances keyed by their escaped string form. Parsing the same
+ * address twice (which happens for every attribute of every stanza) returns the same instance,
+ * so stringprep runs once per address and equality checks mostly end at the identity check.
+ *
+ * <p>The cache is bounded; an evicted address is simply parsed again. Two instances of the same
+ * address can therefore still exist and must compare equal the usual way.
+ */
+public final class JidCache {
+
+    private static final Cache<String, WrappedJid> CACHE =
+            CacheBuilder.newBuilder()
+                    .maximumSize(Config.JID_CACHE_SIZE)
+                    .concurrencyLevel(4)
+                    .build();
+
+    private static final AtomicLong HITS = new AtomicLong(0);
+    private static final AtomicLong MISSES = new AtomicLong(0);
+
+    private JidCache() {
+
+    }
+
+    static WrappedJid ofEscaped(final String jid) throws XmppStringprepException {
+        final WrappedJid cached = CACHE.getIfPresent(jid);
+        if (cached != null) {
+            HITS.incrementAndGet();
+            return cached;
+        }
+        MISSES.incrementAndGet();
+        final WrappedJid created = new WrappedJid(JidCreate.from(jid));
+        final WrappedJid previous = CACHE.asMap().putIfAbsent(jid, created);
+        return previous == null ? created : previous;
+    }
+
+    /**
+     * Returns the canonical instance for a jid that has already been parsed, for example the bare
+     * or domain form of another jid.
+     */
+    static WrappedJid intern(final org.jxmpp.jid.Jid inner) {
+        final String key = inner.toString();
+        final WrappedJid cached = CACHE.getIfPresent(key);
+        if (cached != null) {
+            HITS.incrementAndGet();
+            return cached;
+        }
+        MISSES.incrementAndGet();
+        final WrappedJid created = new WrappedJid(inner);
+        final WrappedJid previous = CACHE.asMap().putIfAbsent(key, created);
+        return previous == null ? created : previous;
+    }
+
+    public static String getStatistics() {
+        final long hits = HITS.get();
+        final long misses = MISSES.get();
+        final long total = hits + misses;
+        return String.format(
+                Locale.US,
+                "hits=%d, misses=%d, hit rate=%.1f%%, cached=%d",
+                hits,
+                misses,
+                total == 0 ? 0.0 : hits * 100.0 / total,
+                CACHE.size());
+    }
+}
@@ -0,0 +1,120 @@
+package eu.siacs.conversations.xmpp;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.siacs.conversations.Config;
+
+/**
+ * Runs the handlers of incoming stanzas off the socket reader thread. Stanzas are spread over
+ * {@link Config#STANZA_DISPATCH_LANES} serial lanes by the bare jid of their sender, so stanzas
+ * of the same conversation are always handled in the order they were received. At most {@link
+ * Config#STANZA_DISPATCH_QUEUE_SIZE} stanzas wait for their handler; after that the reader blocks,
+ * which in turn makes TCP push back on the server.
+ */
+public final class StanzaDispatcher {
+
+    private static final AtomicLong DISPATCHED = new AtomicLong(0);
+    private static final AtomicLong HANDLER_TIME = new AtomicLong(0);
+    private static final AtomicLong MAX_HANDLER_TIME = new AtomicLong(0);
+    private static final AtomicLong BLOCKED = new AtomicLong(0);
+    private static final AtomicLong BLOCKED_TIME = new AtomicLong(0);
+    private static final AtomicInteger MAX_DEPTH = new AtomicInteger(0);
+
+    private final ThreadPoolExecutor[] lanes;
+    private final Semaphore capacity = new Semaphore(Config.STANZA_DISPATCH_QUEUE_SIZE);
+    private final AtomicInteger depth = new AtomicInteger(0);
+
+    StanzaDispatcher() {
+        this.lanes = new ThreadPoolExecutor[Math.max(1, Config.STANZA_DISPATCH_LANES)];
+        for (int i = 0; i < lanes.length; ++i) {
+            final ThreadPoolExecutor lane =
+                    new ThreadPoolExecutor(
+                            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            lane.allowCoreThreadTimeOut(true);
+            this.lanes[i] = lane;
+        }
+    }
+
+    void dispatch(final Jid sender, final Runnable handler) throws InterruptedException {
+        if (!capacity.tryAcquire()) {
+            final long start = SystemClock.elapsedRealtime();
+            capacity.acquire();
+            BLOCKED.incrementAndGet();
+            BLOCKED_TIME.addAndGet(SystemClock.elapsedRealtime() - start);
+        }
+        final int depth = this.depth.incrementAndGet();
+        int maxDepth;
+        while (depth > (maxDepth = MAX_DEPTH.get())
+                && !MAX_DEPTH.compareAndSet(maxDepth, depth)) {
+            // retry
+        }
+        DISPATCHED.incrementAndGet();
+        lane(sender)
+                .execute(
+                        () -> {
+                            final long start = SystemClock.elapsedRealtime();
+                            try {
+                                handler.run();
+                            } finally {
+                                final long duration = SystemClock.elapsedRealtime() - start;
+                                HANDLER_TIME.addAndGet(duration);
+                                long max;
+                                while (duration > (max = MAX_HANDLER_TIME.get())
+                                        && !MAX_HANDLER_TIME.compareAndSet(max, duration)) {
+                                    // retry
+                                }
+                                this.depth.decrementAndGet();
+                                capacity.release();
+                            }
+                        });
+    }
+
+    /**
+     * Runs a task on the lane of the given jid without taking a slot of the queue. For callers
+     * that must not block; the task does not count towards {@link #drain()}.
+     */
+    void execute(final Jid jid, final Runnable task) {
+        lane(jid).execute(task);
+    }
+
+    /** Waits until every stanza dispatched so far has been handled. */
+    void drain() throws InterruptedException {
+        if (depth.get() == 0) {
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(lanes.length);
+        for (final ThreadPoolExecutor lane : lanes) {
+            lane.execute(latch::countDown);
+        }
+        latch.await();
+    }
+
+    private ThreadPoolExecutor lane(final Jid sender) {
+        if (lanes.length == 1 || sender == null) {
+            return lanes[0];
+        }
+        return lanes[(sender.hashCode() & Integer.MAX_VALUE) % lanes.length];
+    }
+
+    public static String getStatistics() {
+        final long dispatched = DISPATCHED.get();
+        return String.format(
+                Locale.US,
+                "dispatched=%d, avg handler=%.1fms, max handler=%dms, max queue depth=%d, reader blocked %d times for %dms",
+                dispatched,
+                dispatched == 0 ? 0.0 : HANDLER_TIME.get() / (double) dispatched,
+                MAX_HANDLER_TIME.get(),
+                MAX_DEPTH.get(),
+                BLOCKED.get(),
+                BLOCKED_TIME.get());
+    }
+}
@@ -0,0 +1,110 @@
+package eu.siacs.conversations.xmpp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import eu.siacs.conversations.xmpp.stanzas.AbstractAcknowledgeableStanza;
+
+/**
+ * Stanzas sent in a stream management session that the server has not acknowledged yet. Sequence
+ * numbers are consecutive, so the stanzas live in a ring buffer and an acknowledgement only
+ * touches the stanzas it covers. Sequence numbers are compared by their distance, which keeps
+ * the queue correct when the counter wraps around.
+ *
+ * <p>Not thread safe; {@link XmppConnection} guards it with its own lock.
+ */
+final class StanzaOutbox {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private AbstractAcknowledgeableStanza[] stanzas =
+            new AbstractAcknowledgeableStanza[INITIAL_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+    private int firstSequence = 0;
+
+    void append(final int sequence, final AbstractAcknowledgeableStanza stanza) {
+        if (size == 0) {
+            firstSequence = sequence;
+        } else if (sequence != lastSequence() + 1) {
+            throw new AssertionError("Stanza count messed up");
+        }
+        if (size == stanzas.length) {
+            resize(stanzas.length * 2);
+        }
+        stanzas[(head + size) & (stanzas.length - 1)] = stanza;
+        ++size;
+    }
+
+    /**
+     * Removes every stanza up to and including the given sequence number.
+     *
+     * @return the removed stanzas, oldest first
+     */
+    List<AbstractAcknowledgeableStanza> acknowledge(final int sequence) {
+        if (size == 0 || sequence - firstSequence < 0) {
+            return Collections.emptyList();
+        }
+        final int count = (int) Math.min(size, (long) (sequence - firstSequence) + 1);
+        final List<AbstractAcknowledgeableStanza> acknowledged = new ArrayList<>(count);
+        final int mask = stanzas.length - 1;
+        for (int i = 0; i < count; ++i) {
+            final int index = (head + i) & mask;
+            acknowledged.add(stanzas[index]);
+            stanzas[index] = null;
+        }
+        head = (head + count) & mask;
+        size -= count;
+        firstSequence += count;
+        if (size == 0 && stanzas.length > INITIAL_CAPACITY * 4) {
+            // give back the memory of a burst
+            clear();
+        }
+        return acknowledged;
+    }
+
+    /** @return all stanzas in the order they were sent */
+    List<AbstractAcknowledgeableStanza> toList() {
+        final List<AbstractAcknowledgeableStanza> list = new ArrayList<>(size);
+        final int mask = stanzas.length - 1;
+        for (int i = 0; i < size; ++i) {
+            list.add(stanzas[(head + i) & mask]);
+        }
+        return list;
+    }
+
+    void clear() {
+        if (stanzas.length > INITIAL_CAPACITY) {
+            stanzas = new AbstractAcknowledgeableStanza[INITIAL_CAPACITY];
+        } else {
+            for (int i = 0; i < size; ++i) {
+                stanzas[(head + i) & (stanzas.length - 1)] = null;
+            }
+        }
+        head = 0;
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int firstSequence() {
+        return firstSequence;
+    }
+
+    private int lastSequence() {
+        return firstSequence + size - 1;
+    }
+
+    private void resize(final int capacity) {
+        final AbstractAcknowledgeableStanza[] resized = new AbstractAcknowledgeableStanza[capacity];
+        final int mask = stanzas.length - 1;
+        for (int i = 0; i < size; ++i) {
+            resized[i] = stanzas[(head + i) & mask];
+        }
+        stanzas = resized;
+        head = 0;
+    }
+}
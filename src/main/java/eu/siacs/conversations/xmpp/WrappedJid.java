@@ -12,6 +12,9 @@ import org.jxmpp.stringprep.XmppStringprepException;
 
 public class WrappedJid implements eu.siacs.conversations.xmpp.Jid {
     private final Jid inner;
+    // memoized; racing threads compute the same canonical instance
+    private transient volatile WrappedJid bare;
+    private transient volatile WrappedJid domain;
 
     WrappedJid(Jid inner) {
         this.inner = inner;
@@ -34,7 +37,15 @@ public class WrappedJid implements eu.siacs.conversations.xmpp.Jid {
 
     @Override
     public eu.siacs.conversations.xmpp.Jid asBareJid() {
-        return new WrappedJid(inner.asBareJid());
+        if (isBareJid()) {
+            return this;
+        }
+        WrappedJid bare = this.bare;
+        if (bare == null) {
+            bare = JidCache.intern(inner.asBareJid());
+            this.bare = bare;
+        }
+        return bare;
     }
 
     @Override
@@ -71,7 +82,15 @@ public class WrappedJid implements eu.siacs.conversations.xmpp.Jid {
 
     @Override
     public eu.siacs.conversations.xmpp.Jid getDomain() {
-        return new WrappedJid(inner.asDomainBareJid());
+        if (inner.isDomainBareJid()) {
+            return this;
+        }
+        WrappedJid domain = this.domain;
+        if (domain == null) {
+            domain = JidCache.intern(inner.asDomainBareJid());
+            this.domain = domain;
+        }
+        return domain;
     }
 
     @Override
@@ -120,7 +139,7 @@ public class WrappedJid implements eu.siacs.conversations.xmpp.Jid {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         WrappedJid that = (WrappedJid) o;
-        return inner.equals(that.inner);
+        return inner.hashCode() == that.inner.hashCode() && inner.equals(that.inner);
     }
 
     @Override
@@ -11,19 +11,22 @@ import android.security.KeyChain;
 import android.util.Base64;
 import android.util.Log;
 import android.util.Pair;
-import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 
 import com.google.common.base.Predicates;
 import com.google.common.base.Strings;
 import com.google.common.collect.Collections2;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.IDN;
 import java.net.InetAddress;
@@ -48,6 +51,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
@@ -72,6 +76,7 @@ import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.entities.ServiceDiscoveryResult;
 import eu.siacs.conversations.generator.IqGenerator;
 import eu.siacs.conversations.http.HttpConnectionManager;
+import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.services.MemorizingTrustManager;
 import eu.siacs.conversations.services.MessageArchiveService;
@@ -83,6 +88,7 @@ import eu.siacs.conversations.utils.PhoneHelper;
 import eu.siacs.conversations.utils.Resolver;
 import eu.siacs.conversations.utils.SSLSocketHelper;
 import eu.siacs.conversations.utils.SocksSocketFactory;
+import eu.siacs.conversations.utils.TimingWheel;
 import eu.siacs.conversations.utils.XmlHelper;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xml.LocalizedContent;
@@ -111,6 +117,8 @@ public class XmppConnection implements Runnable {
     private static final int PACKET_IQ = 0;
     private static final int PACKET_MESSAGE = 1;
     private static final int PACKET_PRESENCE = 2;
+    private static final TimingWheel IQ_DEADLINES =
+            new TimingWheel("iq-deadlines", Config.IQ_TIMEOUT_TICK, TimeUnit.MILLISECONDS, 512);
     public final OnIqPacketReceived registrationResponseListener =
             (account, packet) -> {
                 if (packet.getType() == IqPacket.TYPE.RESULT) {
@@ -145,9 +153,9 @@ public class XmppConnection implements Runnable {
     private final Features features = new Features(this);
     private final HashMap<Jid, ServiceDiscoveryResult> disco = new HashMap<>();
     private final HashMap<String, Jid> commands = new HashMap<>();
-    private final SparseArray<AbstractAcknowledgeableStanza> mStanzaQueue = new SparseArray<>();
-    private final Hashtable<String, Pair<IqPacket, OnIqPacketReceived>> packetCallbacks =
-            new Hashtable<>();
+    private final StanzaOutbox mStanzaQueue = new StanzaOutbox();
+    private final Hashtable<String, PendingIq> packetCallbacks = new Hashtable<>();
+    private final StanzaDispatcher dispatcher = new StanzaDispatcher();
     private final Set<OnAdvancedStreamFeaturesLoaded> advancedStreamFeaturesLoadedListeners =
             new HashSet<>();
     private final XmppConnectionService mXmppConnectionService;
@@ -160,6 +168,7 @@ public class XmppConnection implements Runnable {
     private Element streamFeatures;
     private String streamId = null;
     private int stanzasReceived = 0;
+    private long failedMessageWrites = 0;
     private int stanzasSent = 0;
     private long lastPacketReceived = 0;
     private long lastPingSent = 0;
@@ -173,6 +182,7 @@ public class XmppConnection implements Runnable {
     private final AtomicInteger mSmCatchupMessageCounter = new AtomicInteger(0);
     private boolean mInteractive = false;
     private int attempt = 0;
+    private double attemptJitter = 1.0;
     private OnPresencePacketReceived presenceListener = null;
     private OnJinglePacketReceived jingleListener = null;
     private OnIqPacketReceived unregisteredIqListener = null;
@@ -274,6 +284,8 @@ public class XmppConnection implements Runnable {
         inSmacksSession = false;
         isBound = false;
         this.attempt++;
+        // spread the reconnects of many clients after a server restart
+        this.attemptJitter = 0.5 + SECURE_RANDOM.nextDouble() / 2;
         this.verifiedHostname =
                 null; // will be set if user entered hostname is being used or hostname was verified
         // with dnssec
@@ -584,9 +596,17 @@ public class XmppConnection implements Runnable {
                                     + ": acknowledging stanza #"
                                     + this.stanzasReceived);
                 }
+                if (!persistedReceivedStanzas()) {
+                    resetStreamId();
+                    throw new IOException("unable to persist received messages");
+                }
                 final AckPacket ack = new AckPacket(this.stanzasReceived);
                 tagWriter.writeStanzaAsync(ack);
             } else if (nextTag.isStart("a")) {
+                if (mWaitingForSmCatchup.get()) {
+                    // the catchup message counter is only complete once all handlers ran
+                    drainDispatcher();
+                }
                 boolean accountUiNeedsRefresh = false;
                 synchronized (NotificationService.CATCHUP_LOCK) {
                     if (mWaitingForSmCatchup.compareAndSet(true, false)) {
@@ -833,6 +853,7 @@ public class XmppConnection implements Runnable {
         }
         this.streamId = streamId;
         this.stanzasReceived = 0;
+        this.failedMessageWrites = mXmppConnectionService.databaseBackend.getFailedMessageWrites();
         this.inSmacksSession = true;
         final RequestPacket r = new RequestPacket();
         tagWriter.writeStanzaAsync(r);
@@ -867,9 +888,7 @@ public class XmppConnection implements Runnable {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": session resumed");
             }
             acknowledgedMessages = acknowledgeStanzaUpTo(serverCount);
-            for (int i = 0; i < this.mStanzaQueue.size(); ++i) {
-                failedStanzas.add(mStanzaQueue.valueAt(i));
-            }
+            failedStanzas.addAll(mStanzaQueue.toList());
             mStanzaQueue.clear();
         }
         if (acknowledgedMessages) {
@@ -935,27 +954,27 @@ public class XmppConnection implements Runnable {
                             + stanzasSent);
         }
         boolean acknowledgedMessages = false;
-        for (int i = 0; i < mStanzaQueue.size(); ++i) {
-            if (serverCount >= mStanzaQueue.keyAt(i)) {
-                if (Config.EXTENDED_SM_LOGGING) {
-                    Log.d(
-                            Config.LOGTAG,
-                            account.getJid().asBareJid()
-                                    + ": server acknowledged stanza #"
-                                    + mStanzaQueue.keyAt(i));
-                }
-                final AbstractAcknowledgeableStanza stanza = mStanzaQueue.valueAt(i);
-                if (stanza instanceof MessagePacket && acknowledgedListener != null) {
-                    final MessagePacket packet = (MessagePacket) stanza;
-                    final String id = packet.getId();
-                    final Jid to = packet.getTo();
-                    if (id != null && to != null) {
-                        acknowledgedMessages |=
-                                acknowledgedListener.onMessageAcknowledged(account, to, id);
-                    }
+        final int firstSequence = mStanzaQueue.firstSequence();
+        final List<AbstractAcknowledgeableStanza> acknowledged =
+                mStanzaQueue.acknowledge(serverCount);
+        if (Config.EXTENDED_SM_LOGGING && acknowledged.size() > 0) {
+            Log.d(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid()
+                            + ": server acknowledged stanzas #"
+                            + firstSequence
+                            + " to #"
+                            + (firstSequence + acknowledged.size() - 1));
+        }
+        for (final AbstractAcknowledgeableStanza stanza : acknowledged) {
+            if (stanza instanceof MessagePacket && acknowledgedListener != null) {
+                final MessagePacket packet = (MessagePacket) stanza;
+                final String id = packet.getId();
+                final Jid to = packet.getTo();
+                if (id != null && to != null) {
+                    acknowledgedMessages |=
+                            acknowledgedListener.onMessageAcknowledged(account, to, id);
                 }
-                mStanzaQueue.removeAt(i);
-                i--;
             }
         }
         return acknowledgedMessages;
@@ -978,19 +997,7 @@ public class XmppConnection implements Runnable {
                 throw new AssertionError("Should never encounter invalid type");
         }
         element.setAttributes(currentTag.getAttributes());
-        Tag nextTag = tagReader.readTag();
-        if (nextTag == null) {
-            throw new IOException("interrupted mid tag");
-        }
-        while (!nextTag.isEnd(element.getName())) {
-            if (!nextTag.isNo()) {
-                element.addChild(tagReader.readElement(nextTag));
-            }
-            nextTag = tagReader.readTag();
-            if (nextTag == null) {
-                throw new IOException("interrupted mid tag");
-            }
-        }
+        tagReader.readContent(element);
         if (stanzasReceived == Integer.MAX_VALUE) {
             resetStreamId();
             throw new IOException("time to restart the session. cant handle >2 billion pcks");
@@ -1032,18 +1039,24 @@ public class XmppConnection implements Runnable {
         }
         if (packet instanceof JinglePacket) {
             if (this.jingleListener != null) {
-                this.jingleListener.onJinglePacketReceived(account, (JinglePacket) packet);
+                // call proposals arrive as messages and have to be handled first
+                dispatch(
+                        packet,
+                        () ->
+                                this.jingleListener.onJinglePacketReceived(
+                                        account, (JinglePacket) packet));
             }
         } else {
             OnIqPacketReceived callback = null;
+            PendingIq answered = null;
             synchronized (this.packetCallbacks) {
-                final Pair<IqPacket, OnIqPacketReceived> packetCallbackDuple =
-                        packetCallbacks.get(packet.getId());
-                if (packetCallbackDuple != null) {
+                final PendingIq pendingIq = packetCallbacks.get(packet.getId());
+                if (pendingIq != null) {
                     // Packets to the server should have responses from the server
-                    if (packetCallbackDuple.first.toServer(account)) {
+                    if (pendingIq.packet.toServer(account)) {
                         if (packet.fromServer(account)) {
-                            callback = packetCallbackDuple.second;
+                            answered = pendingIq;
+                            callback = pendingIq.callback;
                             packetCallbacks.remove(packet.getId());
                         } else {
                             Log.e(
@@ -1053,8 +1066,9 @@ public class XmppConnection implements Runnable {
                         }
                     } else {
                         if (packet.getFrom() != null
-                                && packet.getFrom().equals(packetCallbackDuple.first.getTo())) {
-                            callback = packetCallbackDuple.second;
+                                && packet.getFrom().equals(pendingIq.packet.getTo())) {
+                            answered = pendingIq;
+                            callback = pendingIq.callback;
                             packetCallbacks.remove(packet.getId());
                         } else {
                             Log.e(
@@ -1068,12 +1082,14 @@ public class XmppConnection implements Runnable {
                     callback = this.unregisteredIqListener;
                 }
             }
+            if (answered != null) {
+                answered.cancelDeadline();
+                IqMetrics.onResponse(
+                        answered.namespace, SystemClock.elapsedRealtime() - answered.sent);
+            }
             if (callback != null) {
-                try {
-                    callback.onIqPacketReceived(account, packet);
-                } catch (StateChangingError error) {
-                    throw new StateChangingException(error.state);
-                }
+                final OnIqPacketReceived handler = callback;
+                dispatch(packet, () -> handler.onIqPacketReceived(account, packet));
             }
         }
     }
@@ -1090,7 +1106,7 @@ public class XmppConnection implements Runnable {
                             + "'");
             return;
         }
-        this.messageListener.onMessagePacketReceived(account, packet);
+        dispatch(packet, () -> this.messageListener.onMessagePacketReceived(account, packet));
     }
 
     private void processPresence(final Tag currentTag) throws IOException {
@@ -1105,7 +1121,76 @@ public class XmppConnection implements Runnable {
                             + "'");
             return;
         }
-        this.presenceListener.onPresencePacketReceived(account, packet);
+        dispatch(packet, () -> this.presenceListener.onPresencePacketReceived(account, packet));
+    }
+
+    /**
+     * Hands the stanza over to its handler. Until the account is online handlers run right away on
+     * the reader thread, because the login callbacks drive the connection state.
+     */
+    private void dispatch(final AbstractStanza packet, final Runnable handler) throws IOException {
+        if (account.getStatus() != Account.State.ONLINE) {
+            drainDispatcher();
+            try {
+                handler.run();
+            } catch (final StateChangingError error) {
+                throw new StateChangingException(error.state);
+            }
+            return;
+        }
+        final Jid from = packet.getFrom();
+        final Jid sender = from == null ? account.getJid().asBareJid() : from.asBareJid();
+        try {
+            dispatcher.dispatch(
+                    sender,
+                    () -> {
+                        try {
+                            handler.run();
+                        } catch (final StateChangingError error) {
+                            Log.d(
+                                    Config.LOGTAG,
+                                    account.getJid().asBareJid()
+                                            + ": caught StateChangingError("
+                                            + error.state.toString()
+                                            + ") after login");
+                        }
+                    });
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while dispatching stanza");
+        }
+    }
+
+    /**
+     * Everything we acknowledge has to be handled and on disk; the server won't resend it.
+     *
+     * @return false if message writes failed since the session was enabled or last checked
+     */
+    private boolean persistedReceivedStanzas() throws IOException {
+        drainDispatcher();
+        final DatabaseBackend databaseBackend = mXmppConnectionService.databaseBackend;
+        databaseBackend.flushPendingMessageWrites();
+        final long failed = databaseBackend.getFailedMessageWrites();
+        if (failed == this.failedMessageWrites) {
+            return true;
+        }
+        Log.d(
+                Config.LOGTAG,
+                account.getJid().asBareJid()
+                        + ": "
+                        + (failed - this.failedMessageWrites)
+                        + " message writes failed. dropping stream management session");
+        this.failedMessageWrites = failed;
+        return false;
+    }
+
+    private void drainDispatcher() throws IOException {
+        try {
+            dispatcher.drain();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for stanza handlers");
+        }
     }
 
     private void sendStartTLS() throws IOException {
@@ -1168,6 +1253,10 @@ public class XmppConnection implements Runnable {
 
     private void processStreamFeatures(final Tag currentTag) throws IOException {
         this.streamFeatures = tagReader.readElement(currentTag);
+        if (streamId != null && !inSmacksSession && !persistedReceivedStanzas()) {
+            // resuming would acknowledge them
+            resetStreamId();
+        }
         final boolean isSecure =
                 features.encryptionEnabled || Config.ALLOW_NON_TLS_CONNECTIONS || account.isOnion();
         final boolean needsBinding = !isBound && !account.isOptionSet(Account.OPTION_REGISTER);
@@ -1589,7 +1678,7 @@ public class XmppConnection implements Runnable {
 
     private void clearIqCallbacks() {
         final IqPacket failurePacket = new IqPacket(IqPacket.TYPE.TIMEOUT);
-        final ArrayList<OnIqPacketReceived> callbacks = new ArrayList<>();
+        final ArrayList<PendingIq> callbacks = new ArrayList<>();
         synchronized (this.packetCallbacks) {
             if (this.packetCallbacks.size() == 0) {
                 return;
@@ -1600,17 +1689,22 @@ public class XmppConnection implements Runnable {
                             + ": clearing "
                             + this.packetCallbacks.size()
                             + " iq callbacks");
-            final Iterator<Pair<IqPacket, OnIqPacketReceived>> iterator =
-                    this.packetCallbacks.values().iterator();
+            final Iterator<PendingIq> iterator = this.packetCallbacks.values().iterator();
             while (iterator.hasNext()) {
-                Pair<IqPacket, OnIqPacketReceived> entry = iterator.next();
-                callbacks.add(entry.second);
+                final PendingIq entry = iterator.next();
+                entry.cancelDeadline();
+                callbacks.add(entry);
                 iterator.remove();
             }
         }
-        for (OnIqPacketReceived callback : callbacks) {
+        IqMetrics.onCleared(callbacks.size());
+        for (final PendingIq entry : callbacks) {
+            if (entry.future != null) {
+                entry.future.cancel(false);
+                continue;
+            }
             try {
-                callback.onIqPacketReceived(account, failurePacket);
+                entry.callback.onIqPacketReceived(account, failurePacket);
             } catch (StateChangingError error) {
                 Log.d(
                         Config.LOGTAG,
@@ -1693,8 +1787,7 @@ public class XmppConnection implements Runnable {
             mWaitForDisco.set(true);
         }
         lastDiscoStarted = SystemClock.elapsedRealtime();
-        mXmppConnectionService.scheduleWakeUpCall(
-                Config.CONNECT_DISCO_TIMEOUT, account.getUuid().hashCode());
+        mXmppConnectionService.scheduleWakeUpCall(Config.CONNECT_DISCO_TIMEOUT, account);
         Element caps = streamFeatures.findChild("c");
         final String hash = caps == null ? null : caps.getAttribute("hash");
         final String ver = caps == null ? null : caps.getAttribute("ver");
@@ -1959,8 +2052,7 @@ public class XmppConnection implements Runnable {
 
     private void failPendingMessages(final String error) {
         synchronized (this.mStanzaQueue) {
-            for (int i = 0; i < mStanzaQueue.size(); ++i) {
-                final AbstractAcknowledgeableStanza stanza = mStanzaQueue.valueAt(i);
+            for (final AbstractAcknowledgeableStanza stanza : mStanzaQueue.toList()) {
                 if (stanza instanceof MessagePacket) {
                     final MessagePacket packet = (MessagePacket) stanza;
                     final String id = packet.getId();
@@ -1995,24 +2087,157 @@ public class XmppConnection implements Runnable {
     }
 
     public String sendIqPacket(final IqPacket packet, final OnIqPacketReceived callback) {
+        return sendIqPacket(packet, callback, Config.IQ_TIMEOUT);
+    }
+
+    /**
+     * @param timeout seconds after which the callback receives a packet of type {@link
+     *     IqPacket.TYPE#TIMEOUT} if no response arrived. The connection may still be up at that
+     *     point; {@code TIMEOUT} is also delivered for every pending request when the connection
+     *     resets. Deadlines are only reported once the account is online, on the dispatcher lane
+     *     of the recipient, so they never run alongside the login handlers or another handler of
+     *     that recipient.
+     */
+    public String sendIqPacket(
+            final IqPacket packet, final OnIqPacketReceived callback, final int timeout) {
         packet.setFrom(account.getJid());
-        return this.sendUnmodifiedIqPacket(packet, callback, false);
+        return this.sendUnmodifiedIqPacket(packet, callback, null, timeout, false);
     }
 
-    public synchronized String sendUnmodifiedIqPacket(
+    /**
+     * Sends the iq and returns its response. Error responses complete the future normally. The
+     * future fails with a {@link TimeoutException} if no response arrives within {@link
+     * Config#IQ_TIMEOUT} seconds and is cancelled when the connection is reset. Cancelling the
+     * future forgets about the request.
+     */
+    public ListenableFuture<IqPacket> sendIqPacket(final IqPacket packet) {
+        final SettableFuture<IqPacket> future = SettableFuture.create();
+        packet.setFrom(account.getJid());
+        final String id =
+                this.sendUnmodifiedIqPacket(
+                        packet,
+                        (a, response) -> future.set(response),
+                        future,
+                        Config.IQ_TIMEOUT,
+                        false);
+        future.addListener(
+                () -> {
+                    if (future.isCancelled()) {
+                        forgetIqCallback(id);
+                    }
+                },
+                MoreExecutors.directExecutor());
+        return future;
+    }
+
+    /**
+     * Forced iqs are part of the login and are guarded by the socket timeout rather than by a
+     * deadline of their own.
+     */
+    public String sendUnmodifiedIqPacket(
             final IqPacket packet, final OnIqPacketReceived callback, boolean force) {
+        return sendUnmodifiedIqPacket(packet, callback, null, force ? 0 : Config.IQ_TIMEOUT, force);
+    }
+
+    private synchronized String sendUnmodifiedIqPacket(
+            final IqPacket packet,
+            final OnIqPacketReceived callback,
+            final SettableFuture<IqPacket> future,
+            final int timeout,
+            final boolean force) {
         if (packet.getId() == null) {
             packet.setAttribute("id", nextRandomId());
         }
         if (callback != null) {
+            final String id = packet.getId();
+            final PendingIq pendingIq = new PendingIq(packet, callback, future, timeout);
+            final PendingIq previous;
             synchronized (this.packetCallbacks) {
-                packetCallbacks.put(packet.getId(), new Pair<>(packet, callback));
+                previous = packetCallbacks.put(id, pendingIq);
+            }
+            if (previous != null) {
+                previous.cancelDeadline();
+                IqMetrics.onCleared(1);
+            }
+            IqMetrics.onSent();
+            if (timeout > 0) {
+                scheduleIqDeadline(id, pendingIq);
             }
         }
         this.sendPacket(packet, force);
         return packet.getId();
     }
 
+    private void scheduleIqDeadline(final String id, final PendingIq pendingIq) {
+        pendingIq.deadline =
+                IQ_DEADLINES.schedule(
+                        () -> onIqDeadline(id, pendingIq), pendingIq.timeout, TimeUnit.SECONDS);
+    }
+
+    /** Runs on the timing wheel and must not block. */
+    private void onIqDeadline(final String id, final PendingIq pendingIq) {
+        synchronized (this.packetCallbacks) {
+            if (packetCallbacks.get(id) != pendingIq) {
+                return;
+            }
+        }
+        if (account.getStatus() != Account.State.ONLINE) {
+            // the reader thread runs handlers itself during login; a login that takes this long
+            // ends in a reset, which reports the timeout anyway
+            scheduleIqDeadline(id, pendingIq);
+            return;
+        }
+        final Jid to = pendingIq.packet.getTo();
+        dispatcher.execute(
+                to == null ? account.getJid().asBareJid() : to.asBareJid(),
+                () -> onIqTimeout(id, pendingIq));
+    }
+
+    private void onIqTimeout(final String id, final PendingIq pendingIq) {
+        synchronized (this.packetCallbacks) {
+            if (packetCallbacks.get(id) != pendingIq) {
+                return;
+            }
+            packetCallbacks.remove(id);
+        }
+        IqMetrics.onTimeout(pendingIq.namespace);
+        Log.d(
+                Config.LOGTAG,
+                account.getJid().asBareJid()
+                        + ": iq "
+                        + id
+                        + " ("
+                        + pendingIq.namespace
+                        + ") timed out after "
+                        + (SystemClock.elapsedRealtime() - pendingIq.sent)
+                        + "ms");
+        if (pendingIq.future != null) {
+            pendingIq.future.setException(new TimeoutException("no response to iq " + id));
+            return;
+        }
+        try {
+            pendingIq.callback.onIqPacketReceived(account, new IqPacket(IqPacket.TYPE.TIMEOUT));
+        } catch (final StateChangingError error) {
+            Log.d(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid()
+                            + ": caught StateChangingError("
+                            + error.state.toString()
+                            + ") in iq timeout");
+        }
+    }
+
+    private void forgetIqCallback(final String id) {
+        final PendingIq pendingIq;
+        synchronized (this.packetCallbacks) {
+            pendingIq = packetCallbacks.remove(id);
+        }
+        if (pendingIq != null) {
+            pendingIq.cancelDeadline();
+            IqMetrics.onCleared(1);
+        }
+    }
+
     public void sendMessagePacket(final MessagePacket packet) {
         this.sendPacket(packet);
     }
@@ -2031,6 +2256,23 @@ public class XmppConnection implements Runnable {
             disconnect(true);
             return;
         }
+        final int unacknowledged;
+        synchronized (this.mStanzaQueue) {
+            unacknowledged = mStanzaQueue.size();
+        }
+        if (inSmacksSession
+                && packet instanceof AbstractAcknowledgeableStanza
+                && unacknowledged >= Config.SM_MAX_UNACKNOWLEDGED) {
+            Log.d(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid()
+                            + ": server did not acknowledge "
+                            + unacknowledged
+                            + " stanzas. starting new session");
+            resetStreamId();
+            disconnect(true);
+            return;
+        }
         synchronized (this.mStanzaQueue) {
             if (force || isBound) {
                 tagWriter.writeStanzaAsync(packet);
@@ -2043,14 +2285,6 @@ public class XmppConnection implements Runnable {
             }
             if (packet instanceof AbstractAcknowledgeableStanza) {
                 AbstractAcknowledgeableStanza stanza = (AbstractAcknowledgeableStanza) packet;
-
-                if (this.mStanzaQueue.size() != 0) {
-                    int currentHighestKey = this.mStanzaQueue.keyAt(this.mStanzaQueue.size() - 1);
-                    if (currentHighestKey != stanzasSent) {
-                        throw new AssertionError("Stanza count messed up");
-                    }
-                }
-
                 ++stanzasSent;
                 this.mStanzaQueue.append(stanzasSent, stanza);
                 if (stanza instanceof MessagePacket && stanza.getId() != null && inSmacksSession) {
@@ -2062,6 +2296,14 @@ public class XmppConnection implements Runnable {
                                         + stanzasSent);
                     }
                     tagWriter.writeStanzaAsync(new RequestPacket());
+                } else if (inSmacksSession
+                        && mStanzaQueue.size() % (Config.SM_MAX_UNACKNOWLEDGED / 4) == 0) {
+                    // let the server trim a growing queue before it hits the limit
+                    tagWriter.writeStanzaAsync(new RequestPacket());
+                }
+                if (!inSmacksSession && mStanzaQueue.size() > Config.SM_MAX_UNACKNOWLEDGED) {
+                    // nothing is ever resent without stream management; only keep the newest
+                    mStanzaQueue.acknowledge(mStanzaQueue.firstSequence());
                 }
             }
         }
@@ -2134,7 +2376,12 @@ public class XmppConnection implements Runnable {
                 final CountDownLatch streamCountDownLatch = this.mStreamCountDownLatch;
                 try {
                     currentTagWriter.await(1, TimeUnit.SECONDS);
-                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": closing stream");
+                    Log.d(
+                            Config.LOGTAG,
+                            account.getJid().asBareJid()
+                                    + ": closing stream ("
+                                    + currentTagWriter.getStatistics()
+                                    + ")");
                     currentTagWriter.writeTag(Tag.end("stream:stream"));
                     if (streamCountDownLatch != null) {
                         if (streamCountDownLatch.await(1, TimeUnit.SECONDS)) {
@@ -2232,7 +2479,8 @@ public class XmppConnection implements Runnable {
     public int getTimeToNextAttempt() {
         final int additionalTime =
                 account.getLastErrorStatus() == Account.State.POLICY_VIOLATION ? 3 : 0;
-        final int interval = Math.min((int) (25 * Math.pow(1.3, (additionalTime + attempt))), 300);
+        final int interval =
+                (int) (Math.min(25 * Math.pow(1.3, (additionalTime + attempt)), 300) * attemptJitter);
         final int secondsSinceLast =
                 (int) ((SystemClock.elapsedRealtime() - this.lastConnect) / 1000);
         return interval - secondsSinceLast;
@@ -2366,6 +2614,35 @@ public class XmppConnection implements Runnable {
         }
     }
 
+    private static class PendingIq {
+        private final IqPacket packet;
+        private final OnIqPacketReceived callback;
+        private final SettableFuture<IqPacket> future;
+        private final String namespace;
+        private final int timeout;
+        private final long sent = SystemClock.elapsedRealtime();
+        private volatile TimingWheel.Timeout deadline;
+
+        private PendingIq(
+                final IqPacket packet,
+                final OnIqPacketReceived callback,
+                final SettableFuture<IqPacket> future,
+                final int timeout) {
+            this.packet = packet;
+            this.callback = callback;
+            this.future = future;
+            this.namespace = IqMetrics.namespaceOf(packet);
+            this.timeout = timeout;
+        }
+
+        private void cancelDeadline() {
+            final TimingWheel.Timeout deadline = this.deadline;
+            if (deadline != null) {
+                deadline.cancel();
+            }
+        }
+    }
+
     private static class StateChangingError extends Error {
         private final Account.State state;
 
@@ -793,30 +793,69 @@ public class JingleConnectionManager extends AbstractConnectionManager {
             payload = null;
             sid = null;
         }
-        if (sid != null) {
-            for (final AbstractJingleConnection connection : this.connections.values()) {
-                if (connection instanceof JingleFileTransferConnection) {
-                    final JingleFileTransferConnection fileTransfer =
-                            (JingleFileTransferConnection) connection;
-                    final JingleTransport transport = fileTransfer.getTransport();
-                    if (transport instanceof JingleInBandTransport) {
-                        final JingleInBandTransport inBandTransport =
-                                (JingleInBandTransport) transport;
-                        if (inBandTransport.matches(account, sid)) {
-                            inBandTransport.deliverPayload(packet, payload);
-                        }
-                        return;
-                    }
-                }
-            }
+        final JingleInBandTransport inBandTransport =
+                sid == null ? null : findInBandTransport(account, sid);
+        if (inBandTransport != null) {
+            inBandTransport.deliverPayload(packet, payload);
+            return;
         }
         Log.d(Config.LOGTAG, "unable to deliver ibb packet: " + packet.toString());
         account.getXmppConnection()
                 .sendIqPacket(packet.generateResponse(IqPacket.TYPE.ERROR), null);
     }
 
+    public void deliverIbbMessage(final Account account, final MessagePacket packet) {
+        final Element payload = packet.findChild("data", Namespace.IBB);
+        final String sid = payload == null ? null : payload.getAttribute("sid");
+        final JingleInBandTransport inBandTransport =
+                sid == null ? null : findInBandTransport(account, sid);
+        if (inBandTransport != null) {
+            inBandTransport.deliverMessagePayload(packet.getFrom(), payload);
+        } else {
+            Log.d(Config.LOGTAG, "unable to deliver ibb message: " + packet.toString());
+        }
+    }
+
+    public void onIbbMessageAcknowledged(final Account account, final String id) {
+        final int separator = id.lastIndexOf('-');
+        if (separator <= JingleInBandTransport.MESSAGE_ID_PREFIX.length()) {
+            return;
+        }
+        final String sid = id.substring(JingleInBandTransport.MESSAGE_ID_PREFIX.length(), separator);
+        final JingleInBandTransport inBandTransport = findInBandTransport(account, sid);
+        if (inBandTransport != null) {
+            try {
+                inBandTransport.onMessageAcknowledged(Integer.parseInt(id.substring(separator + 1)));
+            } catch (final NumberFormatException e) {
+                Log.d(Config.LOGTAG, "unable to parse ibb message id " + id);
+            }
+        }
+    }
+
+    private JingleInBandTransport findInBandTransport(final Account account, final String sid) {
+        for (final AbstractJingleConnection connection : this.connections.values()) {
+            if (connection instanceof JingleFileTransferConnection) {
+                final JingleTransport transport =
+                        ((JingleFileTransferConnection) connection).getTransport();
+                if (transport instanceof JingleInBandTransport
+                        && ((JingleInBandTransport) transport).matches(account, sid)) {
+                    return (JingleInBandTransport) transport;
+                }
+            }
+        }
+        return null;
+    }
+
     public void notifyRebound(final Account account) {
         for (final AbstractJingleConnection connection : this.connections.values()) {
+            if (connection instanceof JingleFileTransferConnection) {
+                final JingleTransport transport =
+                        ((JingleFileTransferConnection) connection).getTransport();
+                if (transport instanceof JingleInBandTransport
+                        && connection.getId().account == account) {
+                    ((JingleInBandTransport) transport).onStreamReset();
+                }
+            }
             connection.notifyRebound();
         }
         final XmppConnection xmppConnection = account.getXmppConnection();
@@ -1,5 +1,6 @@
 package eu.siacs.conversations.xmpp.jingle;
 
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
@@ -10,7 +11,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Locale;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.entities.Account;
@@ -18,17 +21,45 @@ import eu.siacs.conversations.entities.DownloadableFile;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.services.AbstractConnectionManager;
 import eu.siacs.conversations.xml.Element;
+import eu.siacs.conversations.xml.Namespace;
 import eu.siacs.conversations.xmpp.Jid;
-import eu.siacs.conversations.xmpp.OnIqPacketReceived;
 import eu.siacs.conversations.xmpp.stanzas.IqPacket;
+import eu.siacs.conversations.xmpp.stanzas.MessagePacket;
 
+/**
+ * XEP-0047 transport. The sender keeps a window of blocks outstanding. The window grows
+ * by one block for every window worth of acknowledged blocks and is halved once the round trip
+ * time rises well above the lowest one observed, which means blocks are queueing up somewhere.
+ *
+ * <p>Blocks are sent as iq stanzas and acknowledged by their result. If {@link
+ * Config#IBB_PREFER_MESSAGE_STANZAS} is set and stream management is available, blocks are sent as
+ * message stanzas instead (for servers that rate limit iqs) and acknowledged through stream
+ * management. Those acknowledgements never arrive once the stream management session is lost, so
+ * the transfer fails when the account binds a new session.
+ */
 public class JingleInBandTransport extends JingleTransport {
 
+    public static final String MESSAGE_ID_PREFIX = "ibb-";
+
     private final Account account;
     private final Jid counterpart;
     private final int blockSize;
     private int seq = 0;
     private final String sessionId;
+    private boolean useMessages = false;
+
+    private byte[] buffer;
+    private int window = Config.IBB_INITIAL_WINDOW;
+    private int inFlight = 0;
+    private int acknowledgedSinceResize = 0;
+    private int sentSinceAckRequest = 0;
+    private int seqAtLastDecrease = -1;
+    private long minRoundTripTime = Long.MAX_VALUE;
+    private long smoothedRoundTripTime = 0;
+    private long transferStart = 0;
+    private boolean reachedEnd = false;
+    private boolean finished = false;
+    private final ArrayDeque<Long> pendingMessageAcks = new ArrayDeque<>();
 
     private boolean established = false;
 
@@ -46,22 +77,6 @@ public class JingleInBandTransport extends JingleTransport {
 
     private OnFileTransmissionStatusChanged onFileTransmissionStatusChanged;
 
-    private final OnIqPacketReceived onAckReceived = new OnIqPacketReceived() {
-        @Override
-        public void onIqPacketReceived(Account account, IqPacket packet) {
-            if (!connected) {
-                return;
-            }
-            if (packet.getType() == IqPacket.TYPE.RESULT) {
-                if (remainingSize > 0) {
-                    sendNextBlock();
-                }
-            } else if (packet.getType() == IqPacket.TYPE.ERROR) {
-                onFileTransmissionStatusChanged.onFileTransferAborted();
-            }
-        }
-    };
-
     JingleInBandTransport(final JingleFileTransferConnection connection, final String sid, final int blockSize) {
         this.connection = connection;
         this.account = connection.getId().account;
@@ -84,18 +99,27 @@ public class JingleInBandTransport extends JingleTransport {
     }
 
     public void connect(final OnTransportConnected callback) {
+        final boolean sm = this.account.getXmppConnection().getFeatures().sm();
+        open(Config.IBB_PREFER_MESSAGE_STANZAS && sm, callback);
+    }
+
+    private void open(final boolean useMessages, final OnTransportConnected callback) {
         IqPacket iq = new IqPacket(IqPacket.TYPE.SET);
         iq.setTo(this.counterpart);
         Element open = iq.addChild("open", "http://jabber.org/protocol/ibb");
         open.setAttribute("sid", this.sessionId);
-        open.setAttribute("stanza", "iq");
+        open.setAttribute("stanza", useMessages ? "message" : "iq");
         open.setAttribute("block-size", Integer.toString(this.blockSize));
         this.connected = true;
+        this.useMessages = useMessages;
         this.account.getXmppConnection().sendIqPacket(iq, (account, packet) -> {
-            if (packet.getType() != IqPacket.TYPE.RESULT) {
-                callback.failed();
-            } else {
+            if (packet.getType() == IqPacket.TYPE.RESULT) {
                 callback.established();
+            } else if (useMessages && "feature-not-implemented".equals(packet.getErrorCondition())) {
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": " + counterpart + " does not accept ibb over message stanzas. falling back to iq");
+                open(false, callback);
+            } else {
+                callback.failed();
             }
         });
     }
@@ -136,8 +160,10 @@ public class JingleInBandTransport extends JingleTransport {
                 return;
             }
             innerInputStream = AbstractConnectionManager.upgrade(file, fileInputStream);
+            this.buffer = new byte[this.blockSize];
+            this.transferStart = SystemClock.elapsedRealtime();
             if (this.connected) {
-                this.sendNextBlock();
+                this.fillWindow();
             }
         } catch (Exception e) {
             callback.onFileTransferAborted();
@@ -152,50 +178,161 @@ public class JingleInBandTransport extends JingleTransport {
         FileBackend.close(fileInputStream);
     }
 
+    private synchronized void fillWindow() {
+        while (connected && !reachedEnd && inFlight < window) {
+            sendNextBlock();
+        }
+        if (sentSinceAckRequest >= window) {
+            // let the server trim its copies of the large blocks from the stream management queue
+            this.account.getXmppConnection().r();
+            this.sentSinceAckRequest = 0;
+        }
+        if (connected && reachedEnd && inFlight == 0 && !finished) {
+            finish();
+        }
+    }
+
     private void sendNextBlock() {
-        byte[] buffer = new byte[this.blockSize];
         try {
-            int count = innerInputStream.read(buffer);
-            if (count == -1) {
-                sendClose();
-                file.setSha1Sum(digest.digest());
-                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": sendNextBlock() count was -1");
-                this.onFileTransmissionStatusChanged.onFileTransmitted(file);
-                fileInputStream.close();
-                return;
-            } else if (count != buffer.length) {
-                int rem = innerInputStream.read(buffer, count, buffer.length - count);
-                if (rem > 0) {
-                    count += rem;
+            int count = 0;
+            while (count < buffer.length) {
+                final int read = innerInputStream.read(buffer, count, buffer.length - count);
+                if (read < 0) {
+                    break;
                 }
+                count += read;
+            }
+            if (count == 0) {
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": sendNextBlock() reached end of file");
+                this.reachedEnd = true;
+                return;
             }
             this.remainingSize -= count;
             this.digest.update(buffer, 0, count);
-            String base64 = Base64.encodeToString(buffer, 0, count, Base64.NO_WRAP);
-            IqPacket iq = new IqPacket(IqPacket.TYPE.SET);
-            iq.setTo(this.counterpart);
-            Element data = iq.addChild("data", "http://jabber.org/protocol/ibb");
+            final Element data = new Element("data", Namespace.IBB);
             data.setAttribute("seq", Integer.toString(this.seq));
             data.setAttribute("block-size", Integer.toString(this.blockSize));
             data.setAttribute("sid", this.sessionId);
-            data.setContent(base64);
-            this.account.getXmppConnection().sendIqPacket(iq, this.onAckReceived);
-            this.account.getXmppConnection().r(); //don't fill up stanza queue too much
+            data.setContent(Base64.encodeToString(buffer, 0, count, Base64.NO_WRAP));
+            final long sentAt = SystemClock.elapsedRealtime();
+            if (useMessages) {
+                final MessagePacket message = new MessagePacket();
+                message.setTo(this.counterpart);
+                message.setId(MESSAGE_ID_PREFIX + this.sessionId + '-' + this.seq);
+                message.addChild(data);
+                message.addChild("no-store", Namespace.HINTS);
+                this.pendingMessageAcks.add(sentAt);
+                this.account.getXmppConnection().sendMessagePacket(message);
+            } else {
+                final int blockSeq = this.seq;
+                final IqPacket iq = new IqPacket(IqPacket.TYPE.SET);
+                iq.setTo(this.counterpart);
+                iq.addChild(data);
+                this.account.getXmppConnection().sendIqPacket(iq, (a, packet) -> {
+                    if (packet.getType() == IqPacket.TYPE.RESULT) {
+                        onBlockAcknowledged(blockSeq, sentAt);
+                    } else {
+                        onBlockFailed(blockSeq, packet.getErrorCondition());
+                    }
+                });
+                // message stanzas already request an acknowledgement each
+                this.sentSinceAckRequest++;
+            }
+            this.inFlight++;
             this.seq++;
             connection.updateProgress((int) ((((double) (this.fileSize - this.remainingSize)) / this.fileSize) * 100));
             if (this.remainingSize <= 0) {
-                file.setSha1Sum(digest.digest());
-                this.onFileTransmissionStatusChanged.onFileTransmitted(file);
-                sendClose();
-                fileInputStream.close();
+                this.reachedEnd = true;
             }
         } catch (IOException e) {
             Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": io exception during sendNextBlock() " + e.getMessage());
+            this.reachedEnd = true;
+            this.finished = true;
             FileBackend.close(fileInputStream);
             this.onFileTransmissionStatusChanged.onFileTransferAborted();
         }
     }
 
+    /**
+     * Called when stream management acknowledged one of the message stanzas carrying a block.
+     * Acknowledgements arrive in the order the blocks were sent.
+     */
+    synchronized void onMessageAcknowledged(final int blockSeq) {
+        final Long sentAt = this.pendingMessageAcks.poll();
+        if (sentAt != null) {
+            onBlockAcknowledged(blockSeq, sentAt);
+        }
+    }
+
+    private synchronized void onBlockAcknowledged(final int blockSeq, final long sentAt) {
+        if (!connected || finished) {
+            return;
+        }
+        this.inFlight--;
+        final long roundTripTime = SystemClock.elapsedRealtime() - sentAt;
+        this.minRoundTripTime = Math.min(this.minRoundTripTime, roundTripTime);
+        this.smoothedRoundTripTime = this.smoothedRoundTripTime == 0 ? roundTripTime : (this.smoothedRoundTripTime * 7 + roundTripTime) / 8;
+        final long queueingDelay = this.smoothedRoundTripTime - this.minRoundTripTime;
+        if (queueingDelay > Math.max(this.minRoundTripTime, Config.IBB_MIN_QUEUEING_DELAY)) {
+            // decrease at most once per window; the blocks sent before saw the same queue
+            if (blockSeq >= this.seqAtLastDecrease) {
+                this.window = Math.max(1, this.window / 2);
+                this.seqAtLastDecrease = this.seq;
+                this.acknowledgedSinceResize = 0;
+            }
+        } else if (++this.acknowledgedSinceResize >= this.window) {
+            this.window = Math.min(Config.IBB_MAX_WINDOW, this.window + 1);
+            this.acknowledgedSinceResize = 0;
+        }
+        fillWindow();
+    }
+
+    /**
+     * Called when the account bound a new session. Blocks sent as message stanzas that were not
+     * acknowledged by then are gone along with the old stream management session.
+     */
+    synchronized void onStreamReset() {
+        if (!useMessages || !connected || finished || this.pendingMessageAcks.isEmpty()) {
+            return;
+        }
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": stream management session lost with " + this.pendingMessageAcks.size() + " ibb blocks unacknowledged");
+        this.pendingMessageAcks.clear();
+        this.finished = true;
+        FileBackend.close(fileInputStream);
+        this.onFileTransmissionStatusChanged.onFileTransferAborted();
+    }
+
+    private synchronized void onBlockFailed(final int blockSeq, final String condition) {
+        if (!connected || finished) {
+            return;
+        }
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": ibb block #" + blockSeq + " was rejected (" + condition + ")");
+        this.finished = true;
+        FileBackend.close(fileInputStream);
+        this.onFileTransmissionStatusChanged.onFileTransferAborted();
+    }
+
+    private void finish() {
+        this.finished = true;
+        final long duration = Math.max(1, SystemClock.elapsedRealtime() - this.transferStart);
+        final long transmitted = this.fileSize - this.remainingSize;
+        Log.d(Config.LOGTAG, String.format(
+                Locale.US,
+                "%s: sent %d bytes over ibb in %dms (%.1f KiB/s, window=%d, rtt=%dms/%dms min, %s)",
+                account.getJid().asBareJid(),
+                transmitted,
+                duration,
+                transmitted * 1000.0 / 1024 / duration,
+                this.window,
+                this.smoothedRoundTripTime,
+                this.minRoundTripTime == Long.MAX_VALUE ? 0 : this.minRoundTripTime,
+                this.useMessages ? "message" : "iq"));
+        file.setSha1Sum(digest.digest());
+        this.onFileTransmissionStatusChanged.onFileTransmitted(file);
+        sendClose();
+        FileBackend.close(fileInputStream);
+    }
+
     private void receiveNextBlock(String data) {
         try {
             byte[] buffer = Base64.decode(data, Base64.NO_WRAP);
@@ -230,6 +367,12 @@ public class JingleInBandTransport extends JingleTransport {
         }
     }
 
+    void deliverMessagePayload(final Jid from, final Element payload) {
+        if (connected && this.counterpart.equals(from) && payload.getName().equals("data")) {
+            this.receiveNextBlock(payload.getContent());
+        }
+    }
+
     void deliverPayload(IqPacket packet, Element payload) {
         if (payload.getName().equals("open")) {
             if (!established) {
@@ -14,8 +14,11 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.entities.Account;
@@ -23,6 +26,7 @@ import eu.siacs.conversations.entities.DownloadableFile;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.services.AbstractConnectionManager;
 import eu.siacs.conversations.utils.CryptoHelper;
+import eu.siacs.conversations.utils.FileTransferPipeline;
 import eu.siacs.conversations.utils.SocksSocketFactory;
 import eu.siacs.conversations.utils.WakeLockHelper;
 import eu.siacs.conversations.xmpp.jingle.stanzas.FileTransferDescription;
@@ -76,7 +80,8 @@ public class JingleSocks5Transport extends JingleTransport {
 
     private void createServerSocket() {
         try {
-            serverSocket = new ServerSocket();
+            // channel backed sockets allow unencrypted files to be sent with transferTo()
+            serverSocket = ServerSocketChannel.open().socket();
             serverSocket.bind(new InetSocketAddress(InetAddress.getByName(candidate.getHost()), candidate.getPort()));
             new Thread(() -> {
                 try {
@@ -168,7 +173,7 @@ public class JingleSocks5Transport extends JingleTransport {
                 if (useTor) {
                     socket = SocksSocketFactory.createSocketOverTor(candidate.getHost(), candidate.getPort());
                 } else {
-                    socket = new Socket();
+                    socket = SocketChannel.open().socket();
                     SocketAddress address = new InetSocketAddress(candidate.getHost(), candidate.getPort());
                     socket.connect(address, timeout);
                 }
@@ -187,14 +192,13 @@ public class JingleSocks5Transport extends JingleTransport {
     }
 
     public void send(final DownloadableFile file, final OnFileTransmissionStatusChanged callback) {
-        new Thread(() -> {
+        FileTransferPipeline.TRANSFER_EXECUTOR.execute(() -> {
             InputStream fileInputStream = null;
             final PowerManager.WakeLock wakeLock = connection.getConnectionManager().createWakeLock("jingle_send_" + connection.getId().sessionId);
-            long transmitted = 0;
+            final long size = file.getExpectedSize();
+            final AtomicLong transmitted = new AtomicLong(0);
             try {
                 wakeLock.acquire();
-                MessageDigest digest = MessageDigest.getInstance("SHA-1");
-                digest.reset();
                 fileInputStream = connection.getFileInputStream();
                 if (fileInputStream == null) {
                     Log.d(Config.LOGTAG, this.account.getJid().asBareJid() + ": could not create input stream");
@@ -202,40 +206,31 @@ public class JingleSocks5Transport extends JingleTransport {
                     return;
                 }
                 final InputStream innerInputStream = AbstractConnectionManager.upgrade(file, fileInputStream);
-                long size = file.getExpectedSize();
-                int count;
-                byte[] buffer = new byte[8192];
-                while ((count = innerInputStream.read(buffer)) > 0) {
-                    outputStream.write(buffer, 0, count);
-                    digest.update(buffer, 0, count);
-                    transmitted += count;
-                    connection.updateProgress((int) ((((double) transmitted) / size) * 100));
-                }
-                outputStream.flush();
-                file.setSha1Sum(digest.digest());
+                file.setSha1Sum(FileTransferPipeline.send(innerInputStream, socket, outputStream, progress -> {
+                    transmitted.set(progress);
+                    updateProgress(progress, size);
+                }));
                 if (callback != null) {
                     callback.onFileTransmitted(file);
                 }
             } catch (Exception e) {
                 final Account account = this.account;
-                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": failed sending file after " + transmitted + "/" + file.getExpectedSize() + " (" + socket.getInetAddress() + ":" + socket.getPort() + ")", e);
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": failed sending file after " + transmitted.get() + "/" + file.getExpectedSize() + " (" + socket.getInetAddress() + ":" + socket.getPort() + ")", e);
                 callback.onFileTransferAborted();
             } finally {
                 FileBackend.close(fileInputStream);
                 WakeLockHelper.release(wakeLock);
             }
-        }).start();
+        });
 
     }
 
     public void receive(final DownloadableFile file, final OnFileTransmissionStatusChanged callback) {
-        new Thread(() -> {
+        FileTransferPipeline.TRANSFER_EXECUTOR.execute(() -> {
             OutputStream fileOutputStream = null;
             final PowerManager.WakeLock wakeLock = connection.getConnectionManager().createWakeLock("jingle_receive_" + connection.getId().sessionId);
             try {
                 wakeLock.acquire();
-                MessageDigest digest = MessageDigest.getInstance("SHA-1");
-                digest.reset();
                 //inputStream.skip(45);
                 socket.setSoTimeout(30000);
                 fileOutputStream = connection.getFileOutputStream();
@@ -244,26 +239,10 @@ public class JingleSocks5Transport extends JingleTransport {
                     Log.d(Config.LOGTAG, this.account.getJid().asBareJid() + ": could not create output stream");
                     return;
                 }
-                double size = file.getExpectedSize();
-                long remainingSize = file.getExpectedSize();
-                byte[] buffer = new byte[8192];
-                int count;
-                while (remainingSize > 0) {
-                    count = inputStream.read(buffer);
-                    if (count == -1) {
-                        callback.onFileTransferAborted();
-                        Log.d(Config.LOGTAG, this.account.getJid().asBareJid() + ": file ended prematurely with " + remainingSize + " bytes remaining");
-                        return;
-                    } else {
-                        fileOutputStream.write(buffer, 0, count);
-                        digest.update(buffer, 0, count);
-                        remainingSize -= count;
-                    }
-                    connection.updateProgress((int) (((size - remainingSize) / size) * 100));
-                }
-                fileOutputStream.flush();
+                final long size = file.getExpectedSize();
+                final byte[] sha1 = FileTransferPipeline.receive(inputStream, fileOutputStream, size, progress -> updateProgress(progress, size));
                 fileOutputStream.close();
-                file.setSha1Sum(digest.digest());
+                file.setSha1Sum(sha1);
                 callback.onFileTransmitted(file);
             } catch (Exception e) {
                 Log.d(Config.LOGTAG, this.account.getJid().asBareJid() + ": " + e.getMessage());
@@ -273,7 +252,11 @@ public class JingleSocks5Transport extends JingleTransport {
                 FileBackend.close(fileOutputStream);
                 FileBackend.close(inputStream);
             }
-        }).start();
+        });
+    }
+
+    private void updateProgress(final long transmitted, final long size) {
+        connection.updateProgress(size <= 0 ? 0 : (int) (transmitted * 100 / size));
     }
 
     public boolean isProxy() {